@@ -0,0 +1,136 @@
+package com.cuong.storage.bench;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.schema.SchemaManager;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The database every benchmark in a JMH fork runs against, seeded once per fork.
+ * <p>
+ * With {@code -Dbench.jdbcUrl} (plus {@code bench.dbUsername}/{@code bench.dbPassword}) an existing
+ * PostgreSQL is used and its {@code users} table is dropped, re-created and migrated again; otherwise
+ * an embedded PostgreSQL binary is started in a temporary directory. {@code -Dbench.users} sets the
+ * number of seeded users (default 100000). User {@code n} is {@code user<n>} / {@code user<n>@bench.test}
+ * with first name {@code First<n>}, and every user's password is {@link #PASSWORD}.
+ */
+public final class BenchDatabase {
+
+    public static final String PASSWORD = "bench-password";
+
+    private static BenchDatabase instance;
+
+    private final EmbeddedPostgres embedded;
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    private final int userCount;
+
+    private BenchDatabase() throws IOException, SQLException {
+        String url = System.getProperty("bench.jdbcUrl");
+        if (url == null) {
+            embedded = EmbeddedPostgres.builder().start();
+            jdbcUrl = embedded.getJdbcUrl("postgres", "postgres");
+            username = "postgres";
+            password = "postgres";
+        } else {
+            embedded = null;
+            jdbcUrl = url;
+            username = System.getProperty("bench.dbUsername", "postgres");
+            password = System.getProperty("bench.dbPassword", "postgres");
+        }
+        userCount = Integer.getInteger("bench.users", 100_000);
+        seed();
+    }
+
+    public static synchronized BenchDatabase get() {
+        if (instance == null) {
+            try {
+                instance = new BenchDatabase();
+                Runtime.getRuntime().addShutdownHook(new Thread(instance::close));
+            } catch (IOException | SQLException e) {
+                throw new IllegalStateException("Failed to prepare the benchmark database", e);
+            }
+        }
+        return instance;
+    }
+
+    public Connection connect() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, username, password);
+    }
+
+    /**
+     * Sets the password of users {@code first} to {@code last} to a bcrypt hash of {@link #PASSWORD}
+     * at {@code cost}. Seeded user {@code n} has id {@code n}.
+     */
+    public void setPasswordCost(int first, int last, int cost) throws SQLException {
+        try (Connection connection = connect();
+             PreparedStatement stmt = connection.prepareStatement("UPDATE users SET password = ? WHERE id BETWEEN ? AND ?")) {
+            stmt.setString(1, new BCryptPasswordEncoder(cost).encode(PASSWORD));
+            stmt.setInt(2, first);
+            stmt.setInt(3, last);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void seed() throws SQLException {
+        try (Connection connection = connect(); Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS user_schema_version");
+            stmt.execute("DROP TABLE IF EXISTS user_groups");
+            stmt.execute("DROP TABLE IF EXISTS users");
+            stmt.execute("CREATE TABLE users (id bigserial PRIMARY KEY, firstname varchar(50) NOT NULL, "
+                    + "lastname varchar(50) NOT NULL, email varchar(100) NOT NULL UNIQUE, "
+                    + "username varchar(50) NOT NULL UNIQUE, password varchar(255) NOT NULL)");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO users (firstname, lastname, email, username, password) "
+                    + "SELECT 'First' || i, 'Last' || (i % 1000), 'user' || i || '@bench.test', 'user' || i, ? "
+                    + "FROM generate_series(1, ?) AS i")) {
+                insert.setString(1, new BCryptPasswordEncoder(4).encode(PASSWORD));
+                insert.setInt(2, userCount);
+                insert.executeUpdate();
+            }
+        }
+        // Add the provider's own columns, tables and indexes, as it does at startup
+        ConnectionPool pool = new ConnectionPool("bench-schema", jdbcUrl, username, password, 0, 1, 30_000, 5, 0);
+        try {
+            new SchemaManager(pool).migrate(true);
+        } finally {
+            pool.close();
+        }
+        try (Connection connection = connect(); Statement stmt = connection.createStatement()) {
+            stmt.execute("ANALYZE users");
+        }
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    private void close() {
+        if (embedded != null) {
+            try {
+                embedded.close();
+            } catch (IOException e) {
+                // the JVM is exiting
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.cuong.storage.bench;
+
+import com.cuong.storage.provider.CustomUserStorageProvider;
+import com.cuong.storage.provider.CustomUserStorageProviderFactory;
+import com.cuong.storage.provider.StorageConfig;
+import com.cuong.storage.provider.StorageContext;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Builds providers the way Keycloak does, through {@link CustomUserStorageProviderFactory}, with
+ * proxies standing in for the Keycloak session and realm. The session has no active transaction,
+ * so adapter updates are flushed as soon as they are made.
+ */
+public final class BenchProvider implements AutoCloseable {
+
+    public static final RealmModel REALM = stub(RealmModel.class, "bench-realm");
+
+    private static final KeycloakSession SESSION = stub(KeycloakSession.class, "bench-session");
+
+    private final CustomUserStorageProviderFactory factory = new CustomUserStorageProviderFactory();
+    private final ComponentModel model;
+    private final StorageContext context;
+
+    /**
+     * @param hashCost bcrypt cost for hashes the provider creates
+     * @param cached   whether the provider's lookup cache is enabled
+     */
+    public BenchProvider(int hashCost, boolean cached) {
+        this(hashCost, cached, Map.of());
+    }
+
+    /**
+     * @param overrides further component settings, keyed by {@link StorageConfig} property name
+     */
+    public BenchProvider(int hashCost, boolean cached, Map<String, String> overrides) {
+        BenchDatabase database = BenchDatabase.get();
+        model = new ComponentModel();
+        model.setId("bench-" + hashCost + (cached ? "-cached" : ""));
+        model.setName(model.getId());
+        model.setProviderId(CustomUserStorageProviderFactory.PROVIDER_ID);
+        model.setConfig(new MultivaluedHashMap<>());
+        model.put(StorageConfig.JDBC_URL, database.getJdbcUrl());
+        model.put(StorageConfig.DB_USERNAME, database.getUsername());
+        model.put(StorageConfig.DB_PASSWORD, database.getPassword());
+        model.put(StorageConfig.POOL_MAX_SIZE, 64);
+        model.put(StorageConfig.HASH_COST, hashCost);
+        model.put(StorageConfig.REHASH_ON_LOGIN, false);
+        model.put(StorageConfig.MANAGE_SCHEMA, false);
+        if (!cached) {
+            model.put(StorageConfig.CACHE_TTL_SECONDS, 0);
+        }
+        overrides.forEach(model::put);
+        context = factory.getContext(model);
+    }
+
+    /**
+     * @return a new provider, to be used by one thread and closed like a Keycloak session would
+     */
+    public CustomUserStorageProvider create() {
+        return factory.create(SESSION, model);
+    }
+
+    public StorageContext getContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        factory.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, String id) {
+        KeycloakTransactionManager transactionManager = (KeycloakTransactionManager) Proxy.newProxyInstance(
+                BenchProvider.class.getClassLoader(), new Class<?>[]{KeycloakTransactionManager.class},
+                (proxy, method, args) -> defaultValue(method.getReturnType()));
+        return (T) Proxy.newProxyInstance(BenchProvider.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+                switch (method.getName()) {
+                    case "getId", "getName", "toString" -> id;
+                    case "hashCode" -> id.hashCode();
+                    case "equals" -> proxy == args[0];
+                    case "getTransactionManager" -> transactionManager;
+                    default -> defaultValue(method.getReturnType());
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class || type == long.class || type == short.class || type == byte.class) {
+            return type == long.class ? 0L : type == int.class ? 0 : type == short.class ? (short) 0 : (byte) 0;
+        }
+        if (type == double.class || type == float.class) {
+            return type == double.class ? 0d : 0f;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        return null;
+    }
+}
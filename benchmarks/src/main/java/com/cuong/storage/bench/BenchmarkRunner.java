@@ -0,0 +1,112 @@
+package com.cuong.storage.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks and writes JMH's JSON result file ({@code -Dbench.result}, default
+ * {@code jmh-result.json}). Throughput entries carry the score in ops/time unit; sample-time
+ * entries carry p50/p99 under {@code primaryMetric.scorePercentiles}.
+ * <p>
+ * With {@code -Dbench.baseline=<previous result file>} the run is compared against an earlier one:
+ * a throughput drop or p99 increase beyond {@code -Dbench.tolerance} (default 0.10) is reported
+ * and the process exits with status 1, so a build can gate upgrades on it. Any other arguments
+ * are passed to JMH, e.g. a benchmark name regex or {@code -t 8}.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        String result = System.getProperty("bench.result", "jmh-result.json");
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .jvmArgsAppend(forwardedProperties())
+                .build()).run();
+
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.10"));
+            List<String> regressions = compare(new File(baseline), new File(result), tolerance);
+            regressions.forEach(System.err::println);
+            if (!regressions.isEmpty()) {
+                System.exit(1);
+            }
+            System.out.println("No regressions beyond " + Math.round(tolerance * 100) + "% against " + baseline);
+        }
+    }
+
+    /**
+     * Benchmarks run in forked JVMs, which need the database settings too.
+     */
+    private static String[] forwardedProperties() {
+        List<String> properties = new ArrayList<>();
+        for (String name : new String[]{"bench.jdbcUrl", "bench.dbUsername", "bench.dbPassword", "bench.users"}) {
+            String value = System.getProperty(name);
+            if (value != null) {
+                properties.add("-D" + name + "=" + value);
+            }
+        }
+        return properties.toArray(String[]::new);
+    }
+
+    static List<String> compare(File baselineFile, File currentFile, double tolerance) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, JsonNode> baseline = index(mapper.readTree(baselineFile));
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, JsonNode> current : index(mapper.readTree(currentFile)).entrySet()) {
+            JsonNode before = baseline.get(current.getKey());
+            if (before == null) {
+                continue;
+            }
+            JsonNode after = current.getValue();
+            if ("thrpt".equals(after.path("mode").asText())) {
+                double was = before.path("primaryMetric").path("score").asDouble();
+                double now = after.path("primaryMetric").path("score").asDouble();
+                if (now < was * (1 - tolerance)) {
+                    regressions.add(String.format("%s: throughput %.3f -> %.3f %s", current.getKey(), was, now,
+                            after.path("primaryMetric").path("scoreUnit").asText()));
+                }
+            } else if ("sample".equals(after.path("mode").asText())) {
+                double was = before.path("primaryMetric").path("scorePercentiles").path("99.0").asDouble();
+                double now = after.path("primaryMetric").path("scorePercentiles").path("99.0").asDouble();
+                if (now > was * (1 + tolerance)) {
+                    regressions.add(String.format("%s: p99 %.3f -> %.3f %s", current.getKey(), was, now,
+                            after.path("primaryMetric").path("scoreUnit").asText()));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    private static Map<String, JsonNode> index(JsonNode results) {
+        Map<String, JsonNode> byKey = new HashMap<>();
+        for (JsonNode result : results) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText())
+                    .append(" [").append(result.path("mode").asText());
+            for (Iterator<Map.Entry<String, JsonNode>> params = result.path("params").fields(); params.hasNext(); ) {
+                Map.Entry<String, JsonNode> param = params.next();
+                key.append(", ").append(param.getKey()).append('=').append(param.getValue().asText());
+            }
+            byKey.put(key.append(']').toString(), result);
+        }
+        return byKey;
+    }
+}
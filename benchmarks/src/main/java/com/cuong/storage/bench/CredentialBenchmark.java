@@ -0,0 +1,57 @@
+package com.cuong.storage.bench;
+
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserCredentialModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code isValid} for a correct and a wrong password at several bcrypt costs. The stored hash of
+ * {@code user1} is replaced with one of the benchmarked cost before each trial.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CredentialBenchmark extends ProviderBenchmark {
+
+    @Param({"8", "10", "12"})
+    public int cost;
+
+    private volatile UserModel user;
+    private final UserCredentialModel valid = UserCredentialModel.password(BenchDatabase.PASSWORD);
+    private final UserCredentialModel invalid = UserCredentialModel.password("wrong-" + BenchDatabase.PASSWORD);
+
+    @Override
+    protected int hashCost() {
+        return cost;
+    }
+
+    @Setup(Level.Trial)
+    public void setUpUser() throws SQLException {
+        BenchDatabase.get().setPasswordCost(1, 1, cost);
+        user = null;
+    }
+
+    @Benchmark
+    public boolean validPassword(Session session) {
+        return session.provider.isValid(BenchProvider.REALM, user(session), valid);
+    }
+
+    @Benchmark
+    public boolean invalidPassword(Session session) {
+        return session.provider.isValid(BenchProvider.REALM, user(session), invalid);
+    }
+
+    private UserModel user(Session session) {
+        UserModel current = user;
+        if (current == null) {
+            current = session.provider.getUserByUsername(BenchProvider.REALM, "user1");
+            user = current;
+        }
+        return current;
+    }
+}
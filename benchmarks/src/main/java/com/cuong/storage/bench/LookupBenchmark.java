@@ -0,0 +1,76 @@
+package com.cuong.storage.bench;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@code getUserByUsername} and {@code getUserByEmail} for existing and unknown users, with the
+ * provider's lookup cache enabled and disabled. Misses are never cached, so they always reach
+ * the database.
+ */
+public class LookupBenchmark extends ProviderBenchmark {
+
+    private static final int KEYS = 4096;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Override
+    protected boolean isCached() {
+        return cached;
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+
+        final String[] usernames = new String[KEYS];
+        final String[] emails = new String[KEYS];
+        final String[] missingUsernames = new String[KEYS];
+        final String[] missingEmails = new String[KEYS];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            int users = BenchDatabase.get().getUserCount();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < KEYS; i++) {
+                int n = 1 + random.nextInt(users);
+                usernames[i] = "user" + n;
+                emails[i] = "user" + n + "@bench.test";
+                missingUsernames[i] = "missing" + n;
+                missingEmails[i] = "missing" + n + "@bench.test";
+            }
+        }
+
+        int next() {
+            return next++ & (KEYS - 1);
+        }
+    }
+
+    @Benchmark
+    public UserModel usernameHit(Session session, Keys keys) {
+        return session.provider.getUserByUsername(BenchProvider.REALM, keys.usernames[keys.next()]);
+    }
+
+    @Benchmark
+    public UserModel usernameMiss(Session session, Keys keys) {
+        return session.provider.getUserByUsername(BenchProvider.REALM, keys.missingUsernames[keys.next()]);
+    }
+
+    @Benchmark
+    public UserModel emailHit(Session session, Keys keys) {
+        return session.provider.getUserByEmail(BenchProvider.REALM, keys.emails[keys.next()]);
+    }
+
+    @Benchmark
+    public UserModel emailMiss(Session session, Keys keys) {
+        return session.provider.getUserByEmail(BenchProvider.REALM, keys.missingEmails[keys.next()]);
+    }
+}
@@ -0,0 +1,70 @@
+package com.cuong.storage.bench;
+
+import com.cuong.storage.provider.CustomUserStorageProvider;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common setup: one provider factory per trial, and one provider per thread and iteration, the
+ * way Keycloak creates one per session. Every benchmark reports throughput and sampled latency
+ * percentiles.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class ProviderBenchmark {
+
+    /**
+     * The current trial's providers. Helper states cannot be injected with an abstract benchmark
+     * type, and trials in a fork run one after another, so a static hand-over is sufficient.
+     */
+    static volatile BenchProvider providers;
+
+    protected int hashCost() {
+        return 10;
+    }
+
+    protected boolean isCached() {
+        return true;
+    }
+
+    @Setup(Level.Trial)
+    public void setUpProviders() {
+        providers = new BenchProvider(hashCost(), isCached());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownProviders() {
+        providers.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+
+        CustomUserStorageProvider provider;
+
+        @Setup(Level.Iteration)
+        public void open() {
+            provider = providers.create();
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            provider.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.cuong.storage.bench;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+
+/**
+ * {@code searchForUserStream} for one page of results. {@code selective} matches a handful of
+ * users ({@code user4242}, {@code user42420}, ...); {@code unselective} matches every user's first
+ * name, so the page is filled straight from the first rows of the index scan.
+ */
+public class SearchBenchmark extends ProviderBenchmark {
+
+    private static final Map<String, Map<String, String>> TERMS = Map.of(
+            "selective", Map.of(UserModel.SEARCH, "user4242"),
+            "unselective", Map.of(UserModel.SEARCH, "first"),
+            "exactEmail", Map.of(UserModel.EMAIL, "user4242@bench.test", UserModel.EXACT, "true"));
+
+    @Param({"selective", "unselective", "exactEmail"})
+    public String term;
+
+    @Param({"0", "1000"})
+    public int firstResult;
+
+    @Param({"20"})
+    public int maxResults;
+
+    @Benchmark
+    public void search(Session session, Blackhole blackhole) {
+        session.provider.searchForUserStream(BenchProvider.REALM, TERMS.get(term), firstResult, maxResults)
+                .forEach(blackhole::consume);
+    }
+}
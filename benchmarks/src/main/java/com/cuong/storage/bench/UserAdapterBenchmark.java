@@ -0,0 +1,61 @@
+package com.cuong.storage.bench;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code UserAdapter} update paths. Without an active Keycloak transaction every change is
+ * flushed immediately, so each operation is one UPDATE. Every thread updates its own user to
+ * keep row lock contention out of the measurement.
+ */
+public class UserAdapterBenchmark extends ProviderBenchmark {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Target {
+
+        final int n = 100 + THREADS.getAndIncrement();
+        final String[] values = new String[64];
+        UserModel user;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void load(Session session) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = "First" + n + "-" + i;
+            }
+            user = session.provider.getUserByUsername(BenchProvider.REALM, "user" + n);
+        }
+
+        String next() {
+            return values[next++ & (values.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public void setFirstName(Target target) {
+        target.user.setFirstName(target.next());
+    }
+
+    @Benchmark
+    public void setColumnAttribute(Target target) {
+        target.user.setSingleAttribute(UserModel.LAST_NAME, target.next());
+    }
+
+    @Benchmark
+    public void setCustomAttribute(Target target) {
+        target.user.setSingleAttribute("department", target.next());
+    }
+
+    @Benchmark
+    public void removeCustomAttribute(Target target) {
+        target.user.removeAttribute("department");
+    }
+}
@@ -0,0 +1,67 @@
+package com.cuong.storage.provider;
+
+import com.cuong.storage.bench.BenchDatabase;
+import com.cuong.storage.model.User;
+import com.cuong.storage.model.UserColumns;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserColumns#mapFull} and {@link UserColumns#mapIdentity} on a row that is already in the
+ * driver's buffer, isolating mapping cost from the query.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class MapRowBenchmark {
+
+    private Connection connection;
+    private Statement stmt;
+    private ResultSet rs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = BenchDatabase.get().connect();
+        stmt = connection.createStatement();
+        rs = stmt.executeQuery("SELECT " + UserColumns.FULL + " FROM users WHERE username = 'user1'");
+        if (!rs.next()) {
+            throw new IllegalStateException("Seeded user user1 is missing");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        rs.close();
+        stmt.close();
+        connection.close();
+    }
+
+    @Benchmark
+    public User mapRowToUser() throws SQLException {
+        return UserColumns.mapFull(rs, 0);
+    }
+
+    @Benchmark
+    public User mapIdentity() throws SQLException {
+        return UserColumns.mapIdentity(rs, 0);
+    }
+}
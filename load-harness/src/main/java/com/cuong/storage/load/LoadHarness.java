@@ -0,0 +1,205 @@
+package com.cuong.storage.load;
+
+import com.cuong.storage.bench.BenchDatabase;
+import com.cuong.storage.bench.BenchProvider;
+import com.cuong.storage.provider.StorageConfig;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sweeps concurrent logins against the provider and reports throughput, latency percentiles and
+ * the saturation point for platform and virtual threads.
+ * <p>
+ * Every worker runs {@link LoginScenario} in a closed loop, so the concurrency level is the
+ * number of logins in flight. Latency percentiles cover successful logins only; rejected ones
+ * fail fast and are counted separately. Each level is warmed up, then measured for a fixed time. The
+ * saturation point is the lowest concurrency reaching 95% of the best throughput: past it,
+ * adding clients only adds latency. That throughput is what one Keycloak node can push through
+ * this provider, and {@code max} connections per node times the node count must fit Postgres'
+ * {@code max_connections}.
+ * <p>
+ * Settings (system properties): {@code load.concurrency} (comma separated, default
+ * 1,2,4,8,16,32,64,128,256,512), {@code load.threads} ({@code platform,virtual}),
+ * {@code load.warmupSeconds} (5), {@code load.durationSeconds} (20), {@code load.cost} (bcrypt
+ * cost, 10), {@code load.loginUsers} (distinct users logging in, 1000), {@code load.poolMaxSize}
+ * (20), {@code load.hasherQueueDepth} (64) and {@code load.report} (load-report.json). The
+ * database settings are those of the benchmarks ({@code bench.jdbcUrl}, {@code bench.users}, ...).
+ */
+public final class LoadHarness {
+
+    private static final double SATURATION_FRACTION = 0.95;
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] levels = Arrays.stream(System.getProperty("load.concurrency", "1,2,4,8,16,32,64,128,256,512").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        String[] threadKinds = System.getProperty("load.threads", "platform,virtual").split(",");
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmupSeconds", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.durationSeconds", 20));
+        int cost = Integer.getInteger("load.cost", 10);
+        int loginUsers = Math.min(Integer.getInteger("load.loginUsers", 1000), BenchDatabase.get().getUserCount());
+
+        prepareUsers(loginUsers, cost);
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put(StorageConfig.POOL_MAX_SIZE, System.getProperty("load.poolMaxSize", "20"));
+        settings.put(StorageConfig.HASHER_QUEUE_DEPTH, System.getProperty("load.hasherQueueDepth", "64"));
+
+        List<LoadStep> steps = new ArrayList<>();
+        try (BenchProvider providers = new BenchProvider(cost, true, settings)) {
+            LoginScenario scenario = new LoginScenario(providers, loginUsers);
+            for (String kind : threadKinds) {
+                for (int concurrency : levels) {
+                    LoadStep step = run(scenario, kind.trim(), concurrency, warmupNanos, durationNanos);
+                    System.out.printf("%-8s %5d clients: %9.1f logins/s  p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms  rejected %d  errors %d%n",
+                            step.threads(), step.concurrency(), step.loginsPerSecond(), step.p50(), step.p99(), step.p999(),
+                            step.rejected(), step.errors());
+                    steps.add(step);
+                }
+            }
+        }
+
+        Map<String, Object> report = report(steps, settings, cost, loginUsers);
+        File file = new File(System.getProperty("load.report", "load-report.json"));
+        JsonSerialization.prettyMapper.writeValue(file, report);
+        System.out.println("Report written to " + file.getAbsolutePath());
+        System.exit(0);
+    }
+
+    /**
+     * Gives the users that log in a bcrypt hash of the configured cost and an attribute to read.
+     */
+    private static void prepareUsers(int loginUsers, int cost) throws SQLException {
+        BenchDatabase database = BenchDatabase.get();
+        database.setPasswordCost(1, loginUsers, cost);
+        try (Connection connection = database.connect();
+             PreparedStatement stmt = connection.prepareStatement("UPDATE users SET attributes = "
+                     + "jsonb_build_object(?, jsonb_build_array('dept' || (id % 20))) WHERE id <= ?")) {
+            stmt.setString(1, LoginScenario.ATTRIBUTE);
+            stmt.setInt(2, loginUsers);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static LoadStep run(LoginScenario scenario, String kind, int concurrency, long warmupNanos, long durationNanos)
+            throws InterruptedException {
+        ThreadFactory factory = switch (kind) {
+            case "platform" -> Thread.ofPlatform().name("login-", 0).factory();
+            case "virtual" -> Thread.ofVirtual().name("login-", 0).factory();
+            default -> throw new IllegalArgumentException("load.threads must be platform or virtual, not " + kind);
+        };
+        Recorder recorder = new Recorder(3);
+        LongAdder[] outcomes = new LongAdder[LoginScenario.Outcome.values().length];
+        Arrays.setAll(outcomes, i -> new LongAdder());
+
+        long measureFrom = System.nanoTime() + warmupNanos;
+        long stopAt = measureFrom + durationNanos;
+        List<Thread> workers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = factory.newThread(() -> {
+                long now;
+                while ((now = System.nanoTime()) < stopAt) {
+                    LoginScenario.Outcome outcome = scenario.login();
+                    long end = System.nanoTime();
+                    if (now >= measureFrom) {
+                        outcomes[outcome.ordinal()].increment();
+                        if (outcome == LoginScenario.Outcome.SUCCESS) {
+                            recorder.recordValue(end - now);
+                        }
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(warmupNanos));
+        recorder.reset();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Histogram histogram = recorder.getIntervalHistogram();
+        long succeeded = outcomes[LoginScenario.Outcome.SUCCESS.ordinal()].sum();
+        double seconds = durationNanos / 1e9;
+        return new LoadStep(kind, concurrency, succeeded / seconds,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()), succeeded,
+                outcomes[LoginScenario.Outcome.INVALID.ordinal()].sum(), outcomes[LoginScenario.Outcome.REJECTED.ordinal()].sum(),
+                outcomes[LoginScenario.Outcome.ERROR.ordinal()].sum());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static Map<String, Object> report(List<LoadStep> steps, Map<String, String> settings, int cost, int loginUsers) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("bcryptCost", cost);
+        report.put("loginUsers", loginUsers);
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("settings", settings);
+        report.put("steps", steps);
+
+        Map<String, Object> saturation = new LinkedHashMap<>();
+        for (String kind : steps.stream().map(LoadStep::threads).distinct().toList()) {
+            List<LoadStep> curve = steps.stream().filter(step -> step.threads().equals(kind)).toList();
+            double best = curve.stream().mapToDouble(LoadStep::loginsPerSecond).max().orElse(0);
+            LoadStep knee = curve.stream()
+                    .filter(step -> step.loginsPerSecond() >= best * SATURATION_FRACTION)
+                    .findFirst().orElse(null);
+            if (knee == null) {
+                continue;
+            }
+            Map<String, Object> point = new LinkedHashMap<>();
+            point.put("concurrency", knee.concurrency());
+            point.put("loginsPerSecond", knee.loginsPerSecond());
+            point.put("p99", knee.p99());
+            point.put("peakLoginsPerSecond", best);
+            point.put("limitedBy", limitedBy(curve, knee));
+            saturation.put(kind, point);
+            System.out.printf("%s threads saturate at %d concurrent logins: %.1f logins/s (peak %.1f), p99 %.2f ms, limited by %s%n",
+                    kind, knee.concurrency(), knee.loginsPerSecond(), best, knee.p99(), point.get("limitedBy"));
+        }
+        report.put("saturation", saturation);
+        return report;
+    }
+
+    /**
+     * A rough attribution of the bottleneck beyond the saturation point: rejected logins mean the
+     * bcrypt queue overflowed, errors are mostly connection acquire timeouts, and a curve that
+     * flattens without either is bounded by CPU (bcrypt) or database latency.
+     */
+    private static String limitedBy(List<LoadStep> curve, LoadStep knee) {
+        LoadStep last = curve.get(curve.size() - 1);
+        if (last.rejected() > 0) {
+            return "bcrypt hashing pool (rejected logins from concurrency " + firstWith(curve, true) + ")";
+        }
+        if (last.errors() > 0) {
+            return "connection pool or database (errors from concurrency " + firstWith(curve, false) + ")";
+        }
+        return last.concurrency() == knee.concurrency() ? "not reached" : "CPU or database latency";
+    }
+
+    private static int firstWith(List<LoadStep> curve, boolean rejected) {
+        return curve.stream()
+                .filter(step -> rejected ? step.rejected() > 0 : step.errors() > 0)
+                .mapToInt(LoadStep::concurrency)
+                .findFirst().orElse(-1);
+    }
+}
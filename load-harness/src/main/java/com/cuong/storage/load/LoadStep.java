@@ -0,0 +1,8 @@
+package com.cuong.storage.load;
+
+/**
+ * Result of running the login scenario at one concurrency level. Latencies are in milliseconds.
+ */
+record LoadStep(String threads, int concurrency, double loginsPerSecond, double p50, double p99, double p999, double max,
+                long succeeded, long invalid, long rejected, long errors) {
+}
@@ -0,0 +1,65 @@
+package com.cuong.storage.load;
+
+import com.cuong.storage.bench.BenchDatabase;
+import com.cuong.storage.bench.BenchProvider;
+import com.cuong.storage.credential.PasswordHasherBusyException;
+import com.cuong.storage.provider.CustomUserStorageProvider;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One login as Keycloak performs it against this provider: a provider is created for the
+ * session, the user is looked up by username, the password is checked with {@code isValid} and
+ * the attributes a token mapper reads are fetched, then the session ends and its connection is
+ * returned to the pool.
+ */
+class LoginScenario {
+
+    enum Outcome {
+        SUCCESS,
+        INVALID,
+        REJECTED,
+        ERROR
+    }
+
+    static final String ATTRIBUTE = "department";
+
+    private static final UserCredentialModel PASSWORD = UserCredentialModel.password(BenchDatabase.PASSWORD);
+
+    private final BenchProvider providers;
+    private final String[] usernames;
+
+    LoginScenario(BenchProvider providers, int loginUsers) {
+        this.providers = providers;
+        this.usernames = new String[loginUsers];
+        for (int i = 0; i < loginUsers; i++) {
+            usernames[i] = "user" + (i + 1);
+        }
+    }
+
+    Outcome login() {
+        CustomUserStorageProvider provider = providers.create();
+        try {
+            UserModel user = provider.getUserByUsername(BenchProvider.REALM,
+                    usernames[ThreadLocalRandom.current().nextInt(usernames.length)]);
+            if (user == null) {
+                return Outcome.ERROR;
+            }
+            if (!provider.isValid(BenchProvider.REALM, user, PASSWORD)) {
+                return Outcome.INVALID;
+            }
+            if (user.getFirstAttribute(ATTRIBUTE) == null || user.getAttributes().isEmpty() || user.getEmail() == null) {
+                return Outcome.ERROR;
+            }
+            return Outcome.SUCCESS;
+        } catch (PasswordHasherBusyException e) {
+            return Outcome.REJECTED;
+        } catch (RuntimeException e) {
+            return Outcome.ERROR;
+        } finally {
+            provider.close();
+        }
+    }
+}
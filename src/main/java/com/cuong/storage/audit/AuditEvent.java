@@ -0,0 +1,31 @@
+package com.cuong.storage.audit;
+
+import com.cuong.storage.metrics.ProviderMetrics.Outcome;
+
+/**
+ * A slot of the {@link AuditRingBuffer}. Slots are allocated once and overwritten, so an event
+ * is only valid while the writer is handed it.
+ */
+public final class AuditEvent {
+
+    long timestamp;
+    AuditEventType type;
+    String subject;
+    Outcome outcome;
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public AuditEventType getType() {
+        return type;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+}
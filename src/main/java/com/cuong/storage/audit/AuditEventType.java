@@ -0,0 +1,66 @@
+package com.cuong.storage.audit;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Kinds of audited provider calls, each with its own sampling rate. Lookups and searches are
+ * frequent and sampled by default; logins and changes to users are always recorded.
+ */
+public enum AuditEventType {
+
+    LOOKUP(0.01),
+    SEARCH(0.1),
+    LOGIN_SUCCESS(1.0),
+    LOGIN_FAILURE(1.0),
+    USER_ADDED(1.0),
+    USER_REMOVED(1.0),
+    PASSWORD_UPDATED(1.0);
+
+    private final double defaultRate;
+
+    AuditEventType(double defaultRate) {
+        this.defaultRate = defaultRate;
+    }
+
+    public double getDefaultRate() {
+        return defaultRate;
+    }
+
+    /**
+     * Parses {@code TYPE=rate} entries, e.g. {@code LOOKUP=0.05}, into per-type sampling rates.
+     * Types without an entry keep their default rate.
+     *
+     * @throws IllegalArgumentException for an unknown type or a rate outside [0, 1]
+     */
+    public static Map<AuditEventType, Double> parseRates(List<String> entries) {
+        Map<AuditEventType, Double> rates = new EnumMap<>(AuditEventType.class);
+        for (AuditEventType type : values()) {
+            rates.put(type, type.defaultRate);
+        }
+        for (String entry : entries) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Audit sampling entries must look like TYPE=rate: " + entry);
+            }
+            AuditEventType type;
+            double rate;
+            try {
+                type = valueOf(entry.substring(0, separator).trim().toUpperCase(Locale.ROOT));
+                rate = Double.parseDouble(entry.substring(separator + 1).trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid audit sampling entry: " + entry);
+            }
+            if (!(rate >= 0 && rate <= 1)) {
+                throw new IllegalArgumentException("Audit sampling rate must be between 0 and 1: " + entry);
+            }
+            rates.put(type, rate);
+        }
+        return rates;
+    }
+}
@@ -0,0 +1,22 @@
+package com.cuong.storage.audit;
+
+import java.util.Locale;
+
+/**
+ * Where audit events are written: nowhere, to the {@code com.cuong.storage.audit} log category
+ * (which the server's logging configuration can route to a file), or to the {@code user_audit} table.
+ */
+public enum AuditMode {
+
+    OFF,
+    LOG,
+    TABLE;
+
+    public static AuditMode parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown audit mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.cuong.storage.audit;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.metrics.ProviderMetrics.Outcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Structured audit trail of provider calls.
+ * <p>
+ * {@link #record} runs on the request thread: it samples the event by type and, if kept, claims a
+ * preallocated slot of a lock-free ring buffer, so it neither blocks nor allocates. A background
+ * task calls {@link #drain()} to hand the buffered events to the configured writer in batches.
+ * Events that arrive while the buffer is full, or that the writer fails to store, are counted
+ * as dropped instead of slowing logins down.
+ */
+public class AuditPipeline implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditPipeline.class);
+
+    static final int DRAIN_BATCH_SIZE = 1000;
+
+    private final double[] sampleRates = new double[AuditEventType.values().length];
+    private final AuditRingBuffer buffer;
+    private final AuditWriter writer;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    public AuditPipeline(String componentId, AuditMode mode, Map<AuditEventType, Double> sampleRates, int bufferSize,
+                         ConnectionPool pool) {
+        sampleRates.forEach((type, rate) -> this.sampleRates[type.ordinal()] = rate);
+        this.writer = switch (mode) {
+            case OFF -> null;
+            case LOG -> new LogAuditWriter(componentId);
+            case TABLE -> new TableAuditWriter(componentId, pool);
+        };
+        this.buffer = writer != null ? new AuditRingBuffer(bufferSize) : null;
+    }
+
+    public boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * Records an event if it is sampled. Never blocks.
+     */
+    public void record(AuditEventType type, String subject, Outcome outcome) {
+        if (writer == null) {
+            return;
+        }
+        double rate = sampleRates[type.ordinal()];
+        if (rate < 1.0 && (rate <= 0.0 || ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return;
+        }
+        if (!buffer.offer(System.currentTimeMillis(), type, subject, outcome)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes everything buffered so far.
+     */
+    public synchronized void drain() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            int drained;
+            do {
+                drained = buffer.drain(writer::write, DRAIN_BATCH_SIZE);
+                int failed = writer.flush();
+                written.add(drained - failed);
+                dropped.add(failed);
+            } while (drained == DRAIN_BATCH_SIZE);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to write audit events", e);
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    @Override
+    public String toString() {
+        return writer == null ? "off" : "written=" + written.sum() + " dropped=" + dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        drain();
+    }
+}
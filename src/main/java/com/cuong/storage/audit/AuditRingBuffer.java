@@ -0,0 +1,94 @@
+package com.cuong.storage.audit;
+
+import com.cuong.storage.metrics.ProviderMetrics.Outcome;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded multi-producer, single-consumer queue of preallocated {@link AuditEvent} slots.
+ * <p>
+ * Each slot carries a sequence number (D. Vyukov's bounded queue): a producer claims a position
+ * with one CAS on the tail and publishes the filled slot by advancing its sequence, so request
+ * threads never lock or allocate. When the buffer is full the event is dropped rather than
+ * making the request wait.
+ */
+final class AuditRingBuffer {
+
+    private final int mask;
+    private final AuditEvent[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    AuditRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        slots = new AuditEvent[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new AuditEvent();
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return false when the buffer is full and the event was dropped
+     */
+    boolean offer(long timestamp, AuditEventType type, String subject, Outcome outcome) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    AuditEvent event = slots[index];
+                    event.timestamp = timestamp;
+                    event.type = type;
+                    event.subject = subject;
+                    event.outcome = outcome;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Hands up to {@code max} published events to {@code writer}, in order. Only one thread may drain.
+     *
+     * @return the number of events drained
+     */
+    int drain(Consumer<AuditEvent> writer, int max) {
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            AuditEvent event = slots[index];
+            try {
+                writer.accept(event);
+            } finally {
+                event.subject = null;
+                sequences.set(index, head + slots.length);
+                head++;
+                drained++;
+            }
+        }
+        return drained;
+    }
+}
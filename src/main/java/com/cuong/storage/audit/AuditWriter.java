@@ -0,0 +1,19 @@
+package com.cuong.storage.audit;
+
+/**
+ * Destination of drained audit events. Only called from the draining thread.
+ */
+interface AuditWriter {
+
+    /**
+     * Takes an event; the slot is reused once this returns, so implementations copy what they keep.
+     */
+    void write(AuditEvent event);
+
+    /**
+     * Completes the current batch.
+     *
+     * @return the number of events that could not be written
+     */
+    int flush();
+}
@@ -0,0 +1,34 @@
+package com.cuong.storage.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+
+/**
+ * Writes one {@code key=value} line per event to the {@code com.cuong.storage.audit} category,
+ * which the server's logging configuration can send to its own file handler.
+ */
+class LogAuditWriter implements AuditWriter {
+
+    static final String CATEGORY = "com.cuong.storage.audit";
+
+    private static final Logger audit = LoggerFactory.getLogger(CATEGORY);
+
+    private final String componentId;
+
+    LogAuditWriter(String componentId) {
+        this.componentId = componentId;
+    }
+
+    @Override
+    public void write(AuditEvent event) {
+        audit.info("time={} component={} type={} outcome={} subject=\"{}\"", Instant.ofEpochMilli(event.getTimestamp()),
+                componentId, event.getType(), event.getOutcome(), event.getSubject());
+    }
+
+    @Override
+    public int flush() {
+        return 0;
+    }
+}
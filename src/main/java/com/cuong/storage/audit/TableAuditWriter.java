@@ -0,0 +1,72 @@
+package com.cuong.storage.audit;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.metrics.ProviderMetrics.Outcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inserts events into the {@code user_audit} table, one JDBC batch per flush.
+ */
+class TableAuditWriter implements AuditWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TableAuditWriter.class);
+
+    private static final String INSERT = "INSERT INTO user_audit (event_time, component_id, type, outcome, subject) VALUES (?, ?, ?, ?, ?)";
+
+    private final String componentId;
+    private final ConnectionPool pool;
+    private final List<Row> rows = new ArrayList<>();
+
+    TableAuditWriter(String componentId, ConnectionPool pool) {
+        this.componentId = componentId;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(AuditEvent event) {
+        rows.add(new Row(event.getTimestamp(), event.getType(), event.getOutcome(), event.getSubject()));
+    }
+
+    @Override
+    public int flush() {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        int failed = 0;
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            try (PreparedStatement stmt = connection.prepareStatement(INSERT)) {
+                for (Row row : rows) {
+                    stmt.setTimestamp(1, new Timestamp(row.timestamp()));
+                    stmt.setString(2, componentId);
+                    stmt.setString(3, row.type().name());
+                    stmt.setString(4, row.outcome().name());
+                    stmt.setString(5, row.subject());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to write {} audit events", rows.size(), e);
+            failed = rows.size();
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+            rows.clear();
+        }
+        return failed;
+    }
+
+    private record Row(long timestamp, AuditEventType type, Outcome outcome, String subject) {
+    }
+}
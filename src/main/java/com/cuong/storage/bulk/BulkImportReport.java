@@ -0,0 +1,59 @@
+package com.cuong.storage.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk import. Only the first {@link #MAX_REPORTED_ERRORS} row errors are kept so the
+ * report stays small for badly broken files; {@link #getFailed()} always holds the full count.
+ */
+public class BulkImportReport {
+
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    private long received;
+    private long inserted;
+    private long failed;
+    private final List<RowError> errors = new ArrayList<>();
+    private boolean errorsTruncated;
+
+    void received() {
+        received++;
+    }
+
+    void inserted(long count) {
+        inserted += count;
+    }
+
+    void fail(long line, String reason) {
+        failed++;
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add(new RowError(line, reason));
+        } else {
+            errorsTruncated = true;
+        }
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public List<RowError> getErrors() {
+        return errors;
+    }
+
+    public boolean isErrorsTruncated() {
+        return errorsTruncated;
+    }
+
+    public record RowError(long line, String reason) {
+    }
+}
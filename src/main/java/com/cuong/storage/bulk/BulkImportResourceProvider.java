@@ -0,0 +1,96 @@
+package com.cuong.storage.bulk;
+
+import com.cuong.storage.provider.CustomUserStorageProviderFactory;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.storage.UserStorageProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Realm resource for onboarding users in bulk:
+ * {@code POST /realms/{realm}/user-bulk-import/{componentId}} with a CSV (header row required) or
+ * NDJSON body. The caller needs a bearer token with permission to manage users in the realm.
+ * The response is a {@link BulkImportReport}.
+ */
+public class BulkImportResourceProvider implements RealmResourceProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkImportResourceProvider.class);
+
+    static final String NDJSON = "application/x-ndjson";
+
+    private final KeycloakSession session;
+
+    public BulkImportResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @POST
+    @Path("{componentId}")
+    @Consumes({"text/csv", NDJSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importUsers(@PathParam("componentId") String componentId,
+                                @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+                                InputStream body) {
+        RealmModel realm = session.getContext().getRealm();
+        requireManageUsers(realm);
+
+        ComponentModel component = realm.getComponent(componentId);
+        if (component == null || !CustomUserStorageProviderFactory.PROVIDER_ID.equals(component.getProviderId())) {
+            throw new NotFoundException("No " + CustomUserStorageProviderFactory.PROVIDER_ID + " component " + componentId);
+        }
+        CustomUserStorageProviderFactory factory = (CustomUserStorageProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(UserStorageProvider.class, CustomUserStorageProviderFactory.PROVIDER_ID);
+
+        BulkRecordReader.Format format = contentType != null && contentType.startsWith(NDJSON)
+                ? BulkRecordReader.Format.NDJSON : BulkRecordReader.Format.CSV;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            BulkImportReport report = new BulkUserLoader(factory.getContext(component)).load(reader, format);
+            return Response.ok(report).build();
+        } catch (Exception e) {
+            logger.error("Bulk import into component {} failed", componentId, e);
+            return Response.serverError().entity(Map.of("error", "Bulk import failed: " + e.getMessage())).build();
+        }
+    }
+
+    private void requireManageUsers(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        AdminPermissions.evaluator(session, realm, adminAuth).users().requireManage();
+    }
+
+    @Override
+    public void close() {
+    }
+}
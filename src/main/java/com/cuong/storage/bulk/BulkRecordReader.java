@@ -0,0 +1,147 @@
+package com.cuong.storage.bulk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads bulk import records one line at a time, either as CSV with a header row or as
+ * newline-delimited JSON objects. Only the current line is held in memory. Quoted CSV fields may
+ * contain commas and doubled quotes but not line breaks.
+ */
+class BulkRecordReader {
+
+    enum Format {
+        CSV,
+        NDJSON
+    }
+
+    private final BufferedReader reader;
+    private final Format format;
+    private Map<String, Integer> header;
+    private long lineNumber;
+
+    BulkRecordReader(BufferedReader reader, Format format) {
+        this.reader = reader;
+        this.format = format;
+    }
+
+    long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Whether records can be read; false for CSV input whose header row was missing or invalid.
+     */
+    boolean isReady() {
+        return format == Format.NDJSON || header != null;
+    }
+
+    /**
+     * @return the next record, or {@code null} at the end of the input
+     * @throws IllegalArgumentException when the current line cannot be parsed; reading may continue
+     */
+    BulkUserRecord next() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            lineNumber++;
+        } while (line.isBlank());
+
+        if (format == Format.NDJSON) {
+            return fromJson(line);
+        }
+        if (header == null) {
+            header = parseHeader(line);
+            return next();
+        }
+        return fromCsv(line);
+    }
+
+    private BulkUserRecord fromJson(String line) {
+        JsonNode node;
+        try {
+            node = JsonSerialization.mapper.readTree(line);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed JSON");
+        }
+        if (node == null || !node.isObject()) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        return new BulkUserRecord(lineNumber, text(node, "username"), text(node, "email"), text(node, "firstName"),
+                text(node, "lastName"), text(node, "password"), text(node, "passwordHash"));
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    private static Map<String, Integer> parseHeader(String line) {
+        Map<String, Integer> columns = new HashMap<>();
+        List<String> names = splitCsv(line);
+        for (int i = 0; i < names.size(); i++) {
+            columns.put(names.get(i).trim().toLowerCase(Locale.ROOT).replace("_", ""), i);
+        }
+        if (!columns.containsKey("username")) {
+            throw new IllegalArgumentException("CSV header must contain a username column");
+        }
+        return columns;
+    }
+
+    private BulkUserRecord fromCsv(String line) {
+        List<String> fields = splitCsv(line);
+        return new BulkUserRecord(lineNumber, field(fields, "username"), field(fields, "email"), field(fields, "firstname"),
+                field(fields, "lastname"), field(fields, "password"), field(fields, "passwordhash"));
+    }
+
+    private String field(List<String> fields, String column) {
+        Integer index = header.get(column);
+        if (index == null || index >= fields.size()) {
+            return null;
+        }
+        String value = fields.get(index);
+        return value.isEmpty() ? null : value;
+    }
+
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(current.toString());
+        return fields;
+    }
+}
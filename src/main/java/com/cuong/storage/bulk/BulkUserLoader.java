@@ -0,0 +1,277 @@
+package com.cuong.storage.bulk;
+
+import com.cuong.storage.credential.BcryptCalibrator;
+import com.cuong.storage.provider.StorageContext;
+import com.cuong.storage.shard.ShardDirectory;
+import com.cuong.storage.shard.Sharding;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Loads a stream of users into the {@code users} table with PostgreSQL's COPY protocol.
+ * <p>
+ * The input is processed in chunks of {@link #CHUNK_SIZE} records, so memory use does not grow
+ * with the size of the file. For every chunk, records are validated, plain passwords are bcrypt
+ * hashed in parallel across all cores, the rows are COPYed into a temporary staging table and
+ * then merged into {@code users} with {@code ON CONFLICT DO NOTHING}. Rows rejected by
+ * validation or by a unique constraint are reported by line number. Each chunk commits on its own.
+ * <p>
+ * With several shards every record goes to the shard its username hashes to, each shard through
+ * its own staging table and commit. Unique constraints only hold within a shard, so usernames and
+ * emails the shard directory lists elsewhere are rejected up front, and the emails of inserted
+ * users are listed once their shard has committed.
+ */
+class BulkUserLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkUserLoader.class);
+
+    static final int CHUNK_SIZE = 5000;
+
+    private static final String CREATE_STAGE = "CREATE TEMP TABLE IF NOT EXISTS user_import_stage "
+            + "(line bigint, username text, email text, firstname text, lastname text, password text) ON COMMIT DELETE ROWS";
+    private static final String COPY_STAGE = "COPY user_import_stage (line, username, email, firstname, lastname, password) "
+            + "FROM STDIN WITH (FORMAT csv)";
+    private static final String MERGE_STAGE = "WITH inserted AS ("
+            + "INSERT INTO users (username, email, firstname, lastname, password) "
+            + "SELECT username, email, firstname, lastname, password FROM user_import_stage ORDER BY line "
+            + "ON CONFLICT DO NOTHING RETURNING username) "
+            + "SELECT s.line FROM user_import_stage s WHERE NOT EXISTS (SELECT 1 FROM inserted i WHERE i.username = s.username) "
+            + "ORDER BY s.line";
+
+    private final StorageContext context;
+    private final BCryptPasswordEncoder encoder;
+
+    BulkUserLoader(StorageContext context) {
+        this.context = context;
+        this.encoder = new BCryptPasswordEncoder(context.getPasswordHasher().getCost());
+    }
+
+    BulkImportReport load(BufferedReader input, BulkRecordReader.Format format) throws SQLException, IOException {
+        BulkImportReport report = new BulkImportReport();
+        BulkRecordReader reader = new BulkRecordReader(input, format);
+        ForkJoinPool hashingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        Connection[] connections = new Connection[context.getShards().size()];
+        try {
+            for (int shard = 0; shard < connections.length; shard++) {
+                Connection connection = context.getShard(shard).getPool().acquire();
+                connections[shard] = connection;
+                connection.setAutoCommit(false);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(CREATE_STAGE);
+                }
+                connection.commit();
+            }
+
+            List<BulkUserRecord> chunk = new ArrayList<>(CHUNK_SIZE);
+            while (true) {
+                BulkUserRecord record;
+                try {
+                    record = reader.next();
+                } catch (IllegalArgumentException e) {
+                    report.received();
+                    report.fail(reader.getLineNumber(), e.getMessage());
+                    if (!reader.isReady()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (record == null) {
+                    break;
+                }
+                report.received();
+                chunk.add(record);
+                if (chunk.size() == CHUNK_SIZE) {
+                    loadChunk(connections, hashingPool, chunk, report);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                loadChunk(connections, hashingPool, chunk, report);
+            }
+        } finally {
+            hashingPool.shutdownNow();
+            for (int shard = 0; shard < connections.length; shard++) {
+                if (connections[shard] != null) {
+                    context.getShard(shard).getPool().release(connections[shard]);
+                }
+            }
+        }
+        logger.info("Bulk import finished: received={} inserted={} failed={}", report.getReceived(), report.getInserted(), report.getFailed());
+        return report;
+    }
+
+    private void loadChunk(Connection[] connections, ForkJoinPool hashingPool, List<BulkUserRecord> chunk, BulkImportReport report) {
+        List<BulkUserRecord> valid = rejectListed(validate(chunk, report), report);
+        if (valid.isEmpty()) {
+            return;
+        }
+        List<String> hashes;
+        try {
+            hashes = hashingPool.submit(() -> valid.parallelStream().map(this::hash).toList()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing passwords", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+
+        Map<Integer, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < valid.size(); i++) {
+            byShard.computeIfAbsent(Sharding.shardFor(valid.get(i).username(), connections.length), shard -> new ArrayList<>()).add(i);
+        }
+        byShard.forEach((shard, indexes) -> loadShard(shard, connections[shard], indexes.stream().map(valid::get).toList(),
+                indexes.stream().map(hashes::get).toList(), report));
+    }
+
+    private void loadShard(int shard, Connection connection, List<BulkUserRecord> valid, List<String> hashes, BulkImportReport report) {
+        try {
+            CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_STAGE);
+            try {
+                for (int i = 0; i < valid.size(); i++) {
+                    byte[] row = csvRow(valid.get(i), hashes.get(i));
+                    copy.writeToCopy(row, 0, row.length);
+                }
+                copy.endCopy();
+            } finally {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            }
+
+            Set<Long> rejected = new HashSet<>();
+            try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(MERGE_STAGE)) {
+                while (rs.next()) {
+                    report.fail(rs.getLong(1), "username or email already exists");
+                    rejected.add(rs.getLong(1));
+                }
+            }
+            connection.commit();
+            report.inserted(valid.size() - rejected.size());
+            valid.forEach(record -> context.getUserKeys().add(record.username(), record.email()));
+            context.getDirectory().register(shard, valid.stream()
+                    .filter(record -> !rejected.contains(record.line()))
+                    .map(record -> new ShardDirectory.UserKeys(record.username(), record.email()))
+                    .toList());
+        } catch (SQLException e) {
+            logger.error("Bulk import of lines {}-{} into shard {} failed", valid.get(0).line(), valid.get(valid.size() - 1).line(), shard, e);
+            rollbackQuietly(connection);
+            valid.forEach(record -> report.fail(record.line(), "database error: " + e.getMessage()));
+        }
+    }
+
+    private List<BulkUserRecord> validate(List<BulkUserRecord> chunk, BulkImportReport report) {
+        List<BulkUserRecord> valid = new ArrayList<>(chunk.size());
+        Set<String> usernames = new HashSet<>();
+        Set<String> emails = new HashSet<>();
+        for (BulkUserRecord record : chunk) {
+            String error = validate(record);
+            if (error == null && !usernames.add(record.username().toLowerCase(Locale.ROOT))) {
+                error = "duplicate username in input";
+            }
+            if (error == null && !emails.add(record.email().toLowerCase(Locale.ROOT))) {
+                error = "duplicate email in input";
+            }
+            if (error != null) {
+                report.fail(record.line(), error);
+            } else {
+                valid.add(record);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Rejects records whose username or email the shard directory lists, so exists on some shard
+     * that the unique constraints of the record's own shard cannot see.
+     */
+    private List<BulkUserRecord> rejectListed(List<BulkUserRecord> records, BulkImportReport report) {
+        ShardDirectory directory = context.getDirectory();
+        if (!directory.isEnabled() || records.isEmpty()) {
+            return records;
+        }
+        Set<String> usernames;
+        Set<String> emails;
+        try {
+            usernames = directory.listedUsernames(records.stream().map(BulkUserRecord::username).toList());
+            emails = directory.listedEmails(records.stream().map(BulkUserRecord::email).toList());
+        } catch (SQLException e) {
+            logger.error("Checking lines {}-{} against the shard directory failed", records.get(0).line(),
+                    records.get(records.size() - 1).line(), e);
+            records.forEach(record -> report.fail(record.line(), "database error: " + e.getMessage()));
+            return List.of();
+        }
+        List<BulkUserRecord> unlisted = new ArrayList<>(records.size());
+        for (BulkUserRecord record : records) {
+            if (usernames.contains(record.username().toLowerCase(Locale.ROOT)) || emails.contains(record.email().toLowerCase(Locale.ROOT))) {
+                report.fail(record.line(), "username or email already exists");
+            } else {
+                unlisted.add(record);
+            }
+        }
+        return unlisted;
+    }
+
+    private static String validate(BulkUserRecord record) {
+        if (isBlank(record.username()) || record.username().length() > 50) {
+            return "username is required and at most 50 characters";
+        }
+        if (isBlank(record.email()) || record.email().length() > 100 || !record.email().contains("@")) {
+            return "a valid email of at most 100 characters is required";
+        }
+        if (isBlank(record.firstName()) || record.firstName().length() > 50) {
+            return "firstName is required and at most 50 characters";
+        }
+        if (isBlank(record.lastName()) || record.lastName().length() > 50) {
+            return "lastName is required and at most 50 characters";
+        }
+        if (record.passwordHash() != null) {
+            return BcryptCalibrator.costOf(record.passwordHash()) > 0 ? null : "passwordHash is not a bcrypt hash";
+        }
+        return isBlank(record.password()) ? "password or passwordHash is required" : null;
+    }
+
+    private String hash(BulkUserRecord record) {
+        return record.passwordHash() != null ? record.passwordHash() : encoder.encode(record.password());
+    }
+
+    private static byte[] csvRow(BulkUserRecord record, String hash) {
+        StringBuilder row = new StringBuilder(128);
+        row.append(record.line());
+        for (String value : new String[]{record.username(), record.email(), record.firstName(), record.lastName(), hash}) {
+            row.append(",\"").append(value.replace("\"", "\"\"")).append('"');
+        }
+        return row.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private static void rollbackQuietly(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.debug("Rollback after failed bulk chunk failed", e);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.cuong.storage.bulk;
+
+/**
+ * One user of a bulk import file. Either a plain {@code password} or an already computed bcrypt
+ * {@code passwordHash} must be present.
+ */
+record BulkUserRecord(long line, String username, String email, String firstName, String lastName,
+                      String password, String passwordHash) {
+}
@@ -0,0 +1,311 @@
+package com.cuong.storage.cache;
+
+import com.cuong.storage.shard.Sharding;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
+import org.keycloak.util.JsonSerialization;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evicts users changed in the database, by any node or by hand, from the provider's
+ * {@link UserLookupCache} and Keycloak's user cache, and adds the keys of new and renamed users
+ * to the {@link UserKeyFilter}.
+ * <p>
+ * A trigger on {@code users} sends the old id, username and email of every updated or deleted row,
+ * and the new username and email of every inserted or updated one, on the {@code users_changed}
+ * channel. The feed holds its own connection, outside the pool, that {@code LISTEN}s on it; each
+ * node runs a feed and updates its own lookup cache and key filter. Keycloak's user cache relays
+ * evictions to the whole cluster, so only the node whose feed holds an advisory lock for the
+ * component and shard forwards them there, and not for changes flagged as made through the
+ * provider, whose updates Keycloak already invalidates. The lock is released with the connection,
+ * and the node that takes it over forwards everything changed shortly before.
+ * <p>
+ * The connection is checked after every poll. When it is lost, the feed reconnects with backoff
+ * and, having missed whatever was sent meanwhile, evicts every user modified or deleted since its
+ * last good poll (the trigger keeps deleted rows in {@code user_deletions} for this) and adds
+ * their current keys. Each shard has its own feed.
+ */
+public class UserChangeFeed implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserChangeFeed.class);
+
+    static final String CHANNEL = "users_changed";
+    static final int POLL_TIMEOUT_MS = 10_000;
+    static final long MIN_BACKOFF_MS = 1_000;
+    static final long MAX_BACKOFF_MS = 30_000;
+    /** Re-reads this much history on catch-up, for transactions that committed late. */
+    static final long CATCH_UP_OVERLAP_MS = 60_000;
+    static final long PRUNE_INTERVAL_MS = 3_600_000;
+
+    private static final String CHANGED_SINCE = "SELECT id, username, email, true FROM users WHERE last_modified > ? "
+            + "UNION ALL SELECT id, username, email, false FROM user_deletions WHERE deleted_at > ?";
+    private static final String PRUNE = "DELETE FROM user_deletions WHERE deleted_at < now() - interval '1 day'";
+    /** Built up front, as resolving the record's deserializer would otherwise delay the first notification. */
+    private static final ObjectReader CHANGE_READER = JsonSerialization.mapper.readerFor(UserChange.class);
+    /** Held until the connection closes; the feed never unlocks it. */
+    private static final String TRY_LEAD = "SELECT pg_try_advisory_lock(hashtext(?), ?)";
+
+    private final String componentId;
+    private final int shard;
+    private final String realmId;
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    private final UserLookupCache cache;
+    private final UserKeyFilter userKeys;
+    private final KeycloakSessionFactory sessionFactory;
+    private final Thread thread;
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder forwards = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    private volatile boolean running = true;
+    private volatile Connection connection;
+    private Timestamp listeningSince;
+    /** Since when the feed has added every key written to the shard, catching up after each reconnect. */
+    private long feedingSince;
+    /** Whether this node forwards evictions to Keycloak's user cache. */
+    private volatile boolean leader;
+    private long backoffMs = MIN_BACKOFF_MS;
+    private long lastPruneMillis;
+
+    public UserChangeFeed(String componentId, int shard, String realmId, String jdbcUrl, String username, String password,
+                          UserLookupCache cache, UserKeyFilter userKeys, KeycloakSessionFactory sessionFactory) {
+        this.componentId = componentId;
+        this.shard = shard;
+        this.realmId = realmId;
+        this.jdbcUrl = jdbcUrl;
+        this.username = username;
+        this.password = password;
+        this.cache = cache;
+        this.userKeys = userKeys;
+        this.sessionFactory = sessionFactory;
+        this.thread = new Thread(this::run, "user-storage-feed-" + componentId + (shard > 0 ? "-" + shard : ""));
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        while (running) {
+            try (Connection listener = DriverManager.getConnection(jdbcUrl, username, password)) {
+                connection = listener;
+                listen(listener);
+            } catch (SQLException e) {
+                if (!running) {
+                    break;
+                }
+                logger.warn("Change feed of component {} shard {} lost its connection, reconnecting in {} ms", componentId, shard, backoffMs, e);
+            } catch (RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                logger.error("Change feed of component {} shard {} failed, reconnecting in {} ms", componentId, shard, backoffMs, e);
+            } finally {
+                userKeys.feedStopped(shard);
+                connection = null;
+                leader = false;
+            }
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoffMs = Math.min(2 * backoffMs, MAX_BACKOFF_MS);
+            reconnects.increment();
+        }
+    }
+
+    private void listen(Connection listener) throws SQLException {
+        try (Statement stmt = listener.createStatement()) {
+            stmt.execute("LISTEN " + CHANNEL);
+        }
+        long listeningMillis = System.currentTimeMillis();
+        Timestamp listening = databaseNow(listener);
+        leader = tryLead(listener);
+        if (listeningSince != null) {
+            catchUp(listener, listeningSince, "reconnected");
+        } else {
+            feedingSince = listeningMillis;
+        }
+        listeningSince = listening;
+        userKeys.feedStarted(shard, feedingSince);
+        backoffMs = MIN_BACKOFF_MS;
+        logger.info("Change feed of component {} shard {} listening on {}", componentId, shard, CHANNEL);
+        PGConnection notifications = listener.unwrap(PGConnection.class);
+        while (running) {
+            List<UserChange> changes = parse(notifications.getNotifications(POLL_TIMEOUT_MS));
+            // Before anything slower, as other nodes' new users are reported missing until added
+            addKeys(changes);
+            // Doubles as the liveness check: a dead connection fails here instead of polling silently
+            Timestamp polledAt = databaseNow(listener);
+            List<UserChange> late = parse(notifications.getNotifications());
+            addKeys(late);
+            changes.addAll(late);
+            if (!leader && tryLead(listener)) {
+                // The previous leader may have stopped forwarding a while before its connection closed
+                catchUp(listener, listeningSince, "took over forwarding to the user cache");
+            }
+            evict(changes);
+            listeningSince = polledAt;
+            if (System.currentTimeMillis() - lastPruneMillis > PRUNE_INTERVAL_MS) {
+                prune(listener);
+            }
+        }
+    }
+
+    /**
+     * Evicts everything changed since {@code since}, and adds the current keys of those users, for
+     * the time the feed was not listening.
+     */
+    private void catchUp(Connection listener, Timestamp since, String reason) throws SQLException {
+        Timestamp from = new Timestamp(since.getTime() - CATCH_UP_OVERLAP_MS);
+        List<UserChange> changes = new ArrayList<>();
+        try (PreparedStatement stmt = listener.prepareStatement(CHANGED_SINCE)) {
+            stmt.setTimestamp(1, from);
+            stmt.setTimestamp(2, from);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    boolean current = rs.getBoolean(4);
+                    changes.add(new UserChange(rs.getLong(1), rs.getString(2), rs.getString(3), false, false,
+                            current ? rs.getString(2) : null, current ? rs.getString(3) : null));
+                }
+            }
+        }
+        logger.info("Change feed of component {} shard {} {}, evicting {} users changed since {}", componentId, shard, reason,
+                changes.size(), from);
+        addKeys(changes);
+        evict(changes);
+    }
+
+    private boolean tryLead(Connection listener) throws SQLException {
+        try (PreparedStatement stmt = listener.prepareStatement(TRY_LEAD)) {
+            stmt.setString(1, CHANNEL + ":" + componentId);
+            stmt.setInt(2, shard);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getBoolean(1);
+            }
+        }
+    }
+
+    private void prune(Connection listener) throws SQLException {
+        try (Statement stmt = listener.createStatement()) {
+            int pruned = stmt.executeUpdate(PRUNE);
+            logger.debug("Pruned {} rows from user_deletions", pruned);
+        }
+        lastPruneMillis = System.currentTimeMillis();
+    }
+
+    private List<UserChange> parse(PGNotification[] notifications) {
+        List<UserChange> changes = new ArrayList<>();
+        if (notifications == null) {
+            return changes;
+        }
+        for (PGNotification notification : notifications) {
+            try {
+                changes.add(CHANGE_READER.readValue(notification.getParameter()));
+            } catch (IOException e) {
+                logger.warn("Ignoring malformed notification on {}: {}", CHANNEL, notification.getParameter());
+            }
+        }
+        return changes;
+    }
+
+    private void addKeys(List<UserChange> changes) {
+        changes.forEach(change -> userKeys.add(change.newUsername(), change.newEmail()));
+    }
+
+    /**
+     * New users were cached by nobody, so only updates and deletes are evicted.
+     */
+    private void evict(List<UserChange> changes) {
+        List<UserChange> evicted = changes.stream().filter(change -> !change.inserted()).toList();
+        if (evicted.isEmpty()) {
+            return;
+        }
+        evicted.forEach(change -> cache.invalidate(Sharding.globalId(shard, change.id())));
+        evictions.add(evicted.size());
+        List<UserChange> forwarded = leader ? evicted.stream().filter(change -> !change.provider()).toList() : List.of();
+        if (forwarded.isEmpty()) {
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            UserCache userCache = session.getProvider(UserCache.class);
+            if (realm == null || userCache == null) {
+                return;
+            }
+            for (UserChange change : forwarded) {
+                // Carries the keys the cached user was stored under, so its username and email entries go too
+                String externalId = Sharding.externalId(Sharding.globalId(shard, change.id()));
+                UserModel user = new InMemoryUserAdapter(session, realm, new StorageId(componentId, externalId).getId());
+                user.setUsername(change.username());
+                user.setEmail(change.email());
+                userCache.evict(realm, user);
+            }
+        });
+        forwards.add(forwarded.size());
+        logger.debug("Evicted {} changed users of component {} shard {} from the user cache", forwarded.size(), componentId, shard);
+    }
+
+    private static Timestamp databaseNow(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery("SELECT now()")) {
+            rs.next();
+            return rs.getTimestamp(1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s evictions=%d forwarded=%d reconnects=%d", connection != null ? "listening" : "disconnected",
+                leader ? " (leader)" : "", evictions.sum(), forwards.sum(), reconnects.sum());
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        Connection listener = connection;
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (SQLException e) {
+                logger.debug("Failed to close the change feed connection", e);
+            }
+        }
+    }
+
+    /**
+     * {@code id} is the row's own id on the feed's shard; {@code username} and {@code email} are
+     * the keys before the change, absent for inserts, and {@code newUsername} and {@code newEmail}
+     * those after it, absent for deletes. {@code provider} is set for changes made through the
+     * provider's connections, and never for those read back on catch-up.
+     */
+    record UserChange(long id, String username, String email, boolean provider, boolean inserted, String newUsername,
+                      String newEmail) {
+    }
+}
@@ -0,0 +1,362 @@
+package com.cuong.storage.cache;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.search.UserCounts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over the lowercased usernames and emails in the {@code users} table, so that
+ * lookups of names that do not exist (credential stuffing, Keycloak probing every provider)
+ * are answered without a database round-trip.
+ * <p>
+ * The filter is built by streaming the table of every shard and sized for its row count at the configured
+ * false-positive rate. Users added or renamed through this node are added immediately, and those
+ * written through other nodes or directly in the database as the {@link UserChangeFeed} of their
+ * shard announces them. {@link #catchUp()} periodically reads rows whose {@code last_modified}
+ * moved since the previous pass, for whatever was written before the feeds started listening.
+ * Bloom filters cannot forget, so removed users keep answering "maybe" until the next
+ * {@link #rebuild()}.
+ * <p>
+ * A key is only reported as missing while the feed of every shard is listening and a refresh
+ * has started since it began to, so that no key written in between can be missing. Before that,
+ * before the first build, or if the filter has not been refreshed for
+ * {@link #STALE_AFTER_INTERVALS} intervals, every key is reported as possibly present.
+ */
+public class UserKeyFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserKeyFilter.class);
+
+    static final long MIN_CAPACITY = 10_000;
+    static final double GROWTH_FACTOR = 1.5;
+    static final int FETCH_SIZE = 10_000;
+    /** Re-reads this much history on every catch-up, for transactions that committed late. */
+    static final long CATCH_UP_OVERLAP_MS = 60_000;
+    static final int STALE_AFTER_INTERVALS = 3;
+
+    private static final long USERNAME_SEED = 0x75736572L;
+    private static final long EMAIL_SEED = 0x656d61696cL;
+
+    private final List<ConnectionPool> pools;
+    private final double falsePositiveRate;
+    private final long refreshIntervalMs;
+    private final LongAdder definiteMisses = new LongAdder();
+
+    private volatile Bits current;
+    private volatile Bits building;
+    private volatile long lastRefreshMillis;
+    /** When the last refresh that reached every shard started. */
+    private volatile long lastRefreshStartMillis;
+    /** Per shard, since when its change feed has been adding every new key, or 0 while it is not. */
+    private final AtomicLongArray feedingSince;
+    /** Per shard, each read against that shard's own clock. */
+    private final Timestamp[] catchUpFrom;
+
+    public UserKeyFilter(List<ConnectionPool> pools, double falsePositiveRate, long refreshIntervalMs) {
+        this.pools = pools;
+        this.catchUpFrom = new Timestamp[pools.size()];
+        this.feedingSince = new AtomicLongArray(pools.size());
+        this.falsePositiveRate = falsePositiveRate;
+        this.refreshIntervalMs = refreshIntervalMs;
+    }
+
+    /**
+     * @return false only if no user has this username
+     */
+    public boolean mightContainUsername(String username) {
+        return mightContain(username, USERNAME_SEED);
+    }
+
+    /**
+     * @return false only if no user has this email
+     */
+    public boolean mightContainEmail(String email) {
+        return mightContain(email, EMAIL_SEED);
+    }
+
+    private boolean mightContain(String key, long seed) {
+        Bits bits = current;
+        boolean stale = System.currentTimeMillis() - lastRefreshMillis > STALE_AFTER_INTERVALS * refreshIntervalMs;
+        if (bits == null || key == null || stale || !fed()) {
+            return true;
+        }
+        if (bits.mightContain(key.toLowerCase(Locale.ROOT), seed)) {
+            return true;
+        }
+        definiteMisses.increment();
+        return false;
+    }
+
+    private boolean fed() {
+        long refreshStart = lastRefreshStartMillis;
+        for (int i = 0; i < feedingSince.length(); i++) {
+            long since = feedingSince.get(i);
+            if (since == 0 || since > refreshStart) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the change feed of a shard once it adds every key written to the shard.
+     *
+     * @param sinceMillis when it started to, continuously since then
+     */
+    public void feedStarted(int shard, long sinceMillis) {
+        feedingSince.set(shard, sinceMillis);
+    }
+
+    /**
+     * Called by the change feed of a shard when it stops listening.
+     */
+    public void feedStopped(int shard) {
+        feedingSince.set(shard, 0);
+    }
+
+    /**
+     * Records a username and/or email that now exists; either may be {@code null}.
+     */
+    public void add(String username, String email) {
+        add(current, username, email);
+        add(building, username, email);
+    }
+
+    private static void add(Bits bits, String username, String email) {
+        if (bits == null) {
+            return;
+        }
+        if (username != null) {
+            bits.add(username.toLowerCase(Locale.ROOT), USERNAME_SEED);
+        }
+        if (email != null) {
+            bits.add(email.toLowerCase(Locale.ROOT), EMAIL_SEED);
+        }
+    }
+
+    /**
+     * Builds a new filter sized for the current table and swaps it in.
+     */
+    public synchronized void rebuild() {
+        long start = System.currentTimeMillis();
+        try {
+            // Every row contributes a username and an email key
+            long keys = 0;
+            for (ConnectionPool pool : pools) {
+                Connection connection = pool.acquire();
+                try {
+                    keys += 2 * UserCounts.estimateRows(connection);
+                } finally {
+                    pool.release(connection);
+                }
+            }
+            Bits next = new Bits(Math.max(MIN_CAPACITY, (long) (keys * GROWTH_FACTOR)), falsePositiveRate);
+            building = next;
+            Timestamp[] startedAt = new Timestamp[pools.size()];
+            long rows = 0;
+            for (int i = 0; i < pools.size(); i++) {
+                rows += load(i, next, startedAt);
+            }
+            current = next;
+            for (int i = 0; i < pools.size(); i++) {
+                catchUpFrom[i] = new Timestamp(startedAt[i].getTime() - CATCH_UP_OVERLAP_MS);
+            }
+            lastRefreshStartMillis = start;
+            lastRefreshMillis = System.currentTimeMillis();
+            logger.info("Built user key filter from {} users in {} ms: {}", rows, System.currentTimeMillis() - start, this);
+        } catch (SQLException e) {
+            logger.warn("Failed to build the user key filter; lookups will query the database", e);
+        } finally {
+            building = null;
+        }
+    }
+
+    /**
+     * Adds every user of one shard to {@code bits}.
+     *
+     * @param startedAt receives, at the shard's index, its time before the table was read
+     * @return the number of users read
+     */
+    private long load(int shard, Bits bits, Timestamp[] startedAt) throws SQLException {
+        ConnectionPool pool = pools.get(shard);
+        Connection connection = pool.acquire();
+        try {
+            startedAt[shard] = databaseNow(connection);
+            long rows = 0;
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery("SELECT username, email FROM users")) {
+                    while (rs.next()) {
+                        add(bits, rs.getString(1), rs.getString(2));
+                        rows++;
+                    }
+                }
+            } finally {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+            return rows;
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Adds users created or changed since the previous pass, building the filter first if needed.
+     * Rebuilds instead once the filter has filled up past twice its target false-positive rate.
+     */
+    public synchronized void catchUp() {
+        if (current == null || current.estimatedFalsePositiveRate() > 2 * falsePositiveRate) {
+            rebuild();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < pools.size(); i++) {
+            ConnectionPool pool = pools.get(i);
+            Connection connection = null;
+            try {
+                connection = pool.acquire();
+                Timestamp now = databaseNow(connection);
+                try (PreparedStatement stmt = connection.prepareStatement("SELECT username, email FROM users WHERE last_modified > ?")) {
+                    stmt.setTimestamp(1, catchUpFrom[i]);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            add(rs.getString(1), rs.getString(2));
+                        }
+                    }
+                }
+                catchUpFrom[i] = new Timestamp(now.getTime() - CATCH_UP_OVERLAP_MS);
+            } catch (SQLException e) {
+                // Not counted as refreshed: the filter goes stale unless a later pass reaches every shard
+                logger.warn("Failed to refresh the user key filter from {}", pool.getName(), e);
+                return;
+            } finally {
+                if (connection != null) {
+                    pool.release(connection);
+                }
+            }
+        }
+        lastRefreshStartMillis = start;
+        lastRefreshMillis = System.currentTimeMillis();
+    }
+
+    private static Timestamp databaseNow(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery("SELECT now()")) {
+            rs.next();
+            return rs.getTimestamp(1);
+        }
+    }
+
+    public long getMemoryBytes() {
+        Bits bits = current;
+        return bits == null ? 0 : bits.words.length() * (long) Long.BYTES;
+    }
+
+    /**
+     * @return the false-positive rate implied by the share of bits set, or 1 before the first build
+     */
+    public double getEstimatedFalsePositiveRate() {
+        Bits bits = current;
+        return bits == null ? 1.0 : bits.estimatedFalsePositiveRate();
+    }
+
+    /**
+     * @return lookups answered as missing without querying the database
+     */
+    public long getDefiniteMissCount() {
+        return definiteMisses.sum();
+    }
+
+    @Override
+    public String toString() {
+        Bits bits = current;
+        if (bits == null) {
+            return "not built";
+        }
+        return String.format("bits=%d hashes=%d memory=%dKiB fpp=%.4f definiteMisses=%d", bits.bitCount, bits.hashes,
+                getMemoryBytes() / 1024, bits.estimatedFalsePositiveRate(), getDefiniteMissCount());
+    }
+
+    /**
+     * The bit array, set lock-free so request threads can add while others test. Bit positions
+     * come from two 64-bit hashes of the key combined as {@code h1 + i * h2}.
+     */
+    private static final class Bits {
+
+        final AtomicLongArray words;
+        final long bitCount;
+        final int hashes;
+
+        Bits(long capacity, double falsePositiveRate) {
+            double ln2 = Math.log(2);
+            long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+            this.words = new AtomicLongArray(wordCount);
+            this.bitCount = wordCount * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) bitCount / capacity * ln2));
+        }
+
+        void add(String key, long seed) {
+            long h1 = hash(key, seed);
+            long h2 = mix(h1 ^ 0xC2B2AE3D27D4EB4FL) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word = words.get(index);
+                while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                    word = words.get(index);
+                }
+            }
+        }
+
+        boolean mightContain(String key, long seed) {
+            long h1 = hash(key, seed);
+            long h2 = mix(h1 ^ 0xC2B2AE3D27D4EB4FL) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double estimatedFalsePositiveRate() {
+            long set = 0;
+            for (int i = 0; i < words.length(); i++) {
+                set += Long.bitCount(words.get(i));
+            }
+            return Math.pow((double) set / bitCount, hashes);
+        }
+
+        private static long hash(String key, long seed) {
+            long h = seed ^ 0xCBF29CE484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x100000001B3L;
+            }
+            return mix(h);
+        }
+
+        /** MurmurHash3's 64-bit finalizer. */
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            return h ^ (h >>> 33);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.cuong.storage.cache;
+
+import com.cuong.storage.model.User;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local cache of {@link User} rows shared by all sessions of one storage component.
+ * <p>
+ * Rows are stored once by id; username and email are secondary keys pointing at the id,
+ * lowercased, since lookups match them case-insensitively.
+ * Eviction is size bounded (Caffeine's W-TinyLFU) with a time-to-live, and callers always
+ * receive a private copy so that adapter mutations never leak into the shared entry.
+ */
+public class UserLookupCache {
+
+    private final Cache<Long, User> byId;
+    private final Cache<String, Long> idByUsername;
+    private final Cache<String, Long> idByEmail;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public UserLookupCache(long maxEntries, Duration ttl) {
+        this.byId = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl).build();
+        this.idByUsername = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl).build();
+        this.idByEmail = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl).build();
+    }
+
+    public User getById(long id) {
+        return record(byId.getIfPresent(id));
+    }
+
+    public User getByUsername(String username) {
+        Long id = idByUsername.getIfPresent(key(username));
+        User user = id == null ? null : byId.getIfPresent(id);
+        return record(user != null && username.equalsIgnoreCase(user.getUsername()) ? user : null);
+    }
+
+    public User getByEmail(String email) {
+        Long id = idByEmail.getIfPresent(key(email));
+        User user = id == null ? null : byId.getIfPresent(id);
+        return record(user != null && email.equalsIgnoreCase(user.getEmail()) ? user : null);
+    }
+
+    public void put(User user) {
+        User copy = user.copy();
+        byId.put(copy.getId(), copy);
+        if (copy.getUsername() != null) {
+            idByUsername.put(key(copy.getUsername()), copy.getId());
+        }
+        if (copy.getEmail() != null) {
+            idByEmail.put(key(copy.getEmail()), copy.getId());
+        }
+    }
+
+    public void invalidate(long id) {
+        User removed = byId.asMap().remove(id);
+        if (removed != null) {
+            invalidateKeys(removed.getUsername(), removed.getEmail());
+        }
+    }
+
+    public void invalidateKeys(String username, String email) {
+        if (username != null) {
+            idByUsername.invalidate(key(username));
+        }
+        if (email != null) {
+            idByEmail.invalidate(key(email));
+        }
+    }
+
+    public void clear() {
+        byId.invalidateAll();
+        idByUsername.invalidateAll();
+        idByEmail.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long size() {
+        return byId.estimatedSize();
+    }
+
+    private static String key(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    private User record(User user) {
+        if (user == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return user.copy();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return String.format("size=%d hits=%d misses=%d hitRatio=%.3f", size(), hitCount, total - hitCount,
+                total == 0 ? 0.0 : (double) hitCount / total);
+    }
+}
@@ -0,0 +1,120 @@
+package com.cuong.storage.credential;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Picks the bcrypt cost that fits a latency target on the current hardware.
+ * <p>
+ * Every step of the cost doubles the hashing time, so costs are tried from {@link #MIN_COST}
+ * upwards and the last one whose median time stays within the target wins. Timings differ between
+ * nodes and with load, so {@link #sharedCost} calibrates once per target and keeps the result in
+ * {@code user_hash_cost}, where every other node finds it.
+ */
+public final class BcryptCalibrator {
+
+    private static final Logger logger = LoggerFactory.getLogger(BcryptCalibrator.class);
+
+    static final int MIN_COST = 8;
+    static final int MAX_COST = 16;
+    private static final int SAMPLES = 3;
+    private static final String SAMPLE_PASSWORD = "calibration-password";
+    private static final String SELECT_COST = "SELECT cost FROM user_hash_cost WHERE target_ms = ?";
+    /** The first node to store a cost for the target wins; the others read it back. */
+    private static final String INSERT_COST = "INSERT INTO user_hash_cost (target_ms, cost) VALUES (?, ?) ON CONFLICT (target_ms) DO NOTHING";
+
+    private BcryptCalibrator() {
+    }
+
+    /**
+     * The cost stored for the target, calibrated here and stored if there is none yet. Falls back
+     * to this node's own calibration when the table cannot be read.
+     */
+    public static int sharedCost(ConnectionPool pool, long targetMs) {
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            Integer stored = storedCost(connection, targetMs);
+            if (stored != null) {
+                logger.info("Using the stored bcrypt cost {} for a {} ms hashing target", stored, targetMs);
+                return stored;
+            }
+            int calibrated = calibrate(targetMs);
+            try (PreparedStatement stmt = connection.prepareStatement(INSERT_COST)) {
+                stmt.setLong(1, targetMs);
+                stmt.setInt(2, calibrated);
+                stmt.executeUpdate();
+            }
+            stored = storedCost(connection, targetMs);
+            return stored != null ? stored : calibrated;
+        } catch (SQLException e) {
+            logger.warn("Failed to share the bcrypt cost through the database, calibrating on this node only", e);
+            return calibrate(targetMs);
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+    }
+
+    private static Integer storedCost(Connection connection, long targetMs) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_COST)) {
+            stmt.setLong(1, targetMs);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : null;
+            }
+        }
+    }
+
+    public static int calibrate(long targetMs) {
+        BCrypt.hashpw(SAMPLE_PASSWORD, BCrypt.gensalt(MIN_COST));
+        int chosen = MIN_COST;
+        for (int cost = MIN_COST; cost <= MAX_COST; cost++) {
+            long millis = medianMillis(cost);
+            logger.debug("bcrypt cost {} takes {} ms", cost, millis);
+            if (millis > targetMs) {
+                break;
+            }
+            chosen = cost;
+        }
+        logger.info("Calibrated bcrypt cost {} for a {} ms hashing target", chosen, targetMs);
+        return chosen;
+    }
+
+    private static long medianMillis(int cost) {
+        long[] samples = new long[SAMPLES];
+        String salt = BCrypt.gensalt(cost);
+        for (int i = 0; i < SAMPLES; i++) {
+            long start = System.nanoTime();
+            BCrypt.hashpw(SAMPLE_PASSWORD, salt);
+            samples[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(samples);
+        return samples[SAMPLES / 2];
+    }
+
+    /**
+     * Reads the cost from a modular crypt bcrypt hash ({@code $2a$10$...}), or -1 if the value
+     * is not a bcrypt hash.
+     */
+    public static int costOf(String encodedPassword) {
+        if (encodedPassword == null || encodedPassword.length() < 7 || encodedPassword.charAt(0) != '$'
+                || encodedPassword.charAt(3) != '$' || encodedPassword.charAt(6) != '$') {
+            return -1;
+        }
+        char tens = encodedPassword.charAt(4);
+        char units = encodedPassword.charAt(5);
+        if (!Character.isDigit(tens) || !Character.isDigit(units)) {
+            return -1;
+        }
+        return (tens - '0') * 10 + (units - '0');
+    }
+}
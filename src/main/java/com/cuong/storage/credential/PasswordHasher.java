@@ -0,0 +1,101 @@
+package com.cuong.storage.credential;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs bcrypt on a dedicated, fixed-size worker pool with a bounded queue.
+ * <p>
+ * Request threads hand the hashing work over and wait for the result. When the queue is full
+ * the task is rejected immediately with {@link PasswordHasherBusyException} instead of piling
+ * up, so a login storm cannot occupy every Keycloak worker thread.
+ */
+public class PasswordHasher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PasswordHasher.class);
+
+    private final int cost;
+    private final BCryptPasswordEncoder encoder;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMs;
+
+    public PasswordHasher(String name, int cost, int threads, int queueDepth, long timeoutMs) {
+        this.cost = cost;
+        this.encoder = new BCryptPasswordEncoder(cost);
+        this.timeoutMs = timeoutMs;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth), r -> {
+                    Thread thread = new Thread(r, "user-storage-bcrypt-" + name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public boolean matches(String rawPassword, String encodedPassword) {
+        if (rawPassword == null || encodedPassword == null) {
+            return false;
+        }
+        return run(() -> encoder.matches(rawPassword, encodedPassword));
+    }
+
+    public String encode(String rawPassword) {
+        return run(() -> encoder.encode(rawPassword));
+    }
+
+    /**
+     * Whether a stored hash was produced with a cost other than the target one and should be
+     * replaced after the next successful login. Nodes share one calibrated cost, so they agree
+     * on which hashes those are.
+     */
+    public boolean needsRehash(String encodedPassword) {
+        int storedCost = BcryptCalibrator.costOf(encodedPassword);
+        return storedCost > 0 && storedCost != cost;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    private <T> T run(Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Password hashing queue is full ({} waiting), rejecting request", executor.getQueue().size());
+            throw new PasswordHasherBusyException("Password verification is temporarily overloaded");
+        }
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new PasswordHasherBusyException("Password verification timed out after " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PasswordHasherBusyException("Interrupted while waiting for password verification");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
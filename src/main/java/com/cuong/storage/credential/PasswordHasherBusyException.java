@@ -0,0 +1,16 @@
+package com.cuong.storage.credential;
+
+import org.keycloak.models.ModelException;
+
+/**
+ * Thrown when the bcrypt worker pool cannot take more work. Surfacing an error instead of a
+ * failed match keeps overload from counting as a wrong password in brute force detection.
+ */
+public class PasswordHasherBusyException extends ModelException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PasswordHasherBusyException(String message) {
+        super(message);
+    }
+}
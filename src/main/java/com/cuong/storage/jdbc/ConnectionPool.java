@@ -0,0 +1,257 @@
+package com.cuong.storage.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of PostgreSQL connections.
+ * <p>
+ * At most {@code maxSize} connections are handed out at once; callers block for up to
+ * {@code acquireTimeoutMs} before getting an {@link SQLTransientConnectionException}.
+ * Idle connections are validated before reuse, the pool is topped up to {@code minSize}
+ * in the background, and connections held longer than the leak threshold are reported
+ * together with the stack that borrowed them. Every connection sets {@code user_storage.origin},
+ * so that the change feed trigger can tell the provider's own writes from others.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final int CONNECT_ATTEMPTS = 3;
+    private static final long VALIDATE_AFTER_IDLE_MS = 500;
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long HOUSEKEEPING_PERIOD_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final String MARK_ORIGIN = "SET user_storage.origin = 'provider'";
+
+    private final String name;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final int validationTimeoutSeconds;
+    private final long leakDetectionMs;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, Lease> leased = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    public ConnectionPool(String name, String url, String username, String password, int minSize, int maxSize,
+                          long acquireTimeoutMs, int validationTimeoutSeconds, long leakDetectionMs) {
+        this.name = name;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.leakDetectionMs = leakDetectionMs;
+        this.permits = new Semaphore(maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "user-storage-pool-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 0, HOUSEKEEPING_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMs
+                        + " ms waiting for a connection from pool " + name + " (" + maxSize + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            Connection connection = takeIdle();
+            if (connection == null) {
+                connection = open();
+            }
+            leased.put(connection, new Lease(leakDetectionMs > 0 ? new Exception("Connection acquired here") : null));
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Connection connection) {
+        if (connection == null || leased.remove(connection) == null) {
+            return;
+        }
+        try {
+            if (closed || connection.isClosed()) {
+                closeQuietly(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            idle.offerFirst(new IdleConnection(connection, System.currentTimeMillis()));
+        } catch (SQLException e) {
+            logger.warn("Discarding connection from pool {} that failed to reset", name, e);
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getActiveCount() {
+        return leased.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private Connection takeIdle() {
+        IdleConnection candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - candidate.since < VALIDATE_AFTER_IDLE_MS || isValid(candidate.connection)) {
+                return candidate.connection;
+            }
+            logger.debug("Dropping dead idle connection from pool {}", name);
+            closeQuietly(candidate.connection);
+        }
+        return null;
+    }
+
+    private boolean isValid(Connection connection) {
+        try {
+            return !connection.isClosed() && connection.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection open() throws SQLException {
+        SQLException lastException = null;
+        for (int attempt = 1; attempt <= CONNECT_ATTEMPTS; attempt++) {
+            try {
+                Connection connection = DriverManager.getConnection(url, username, password);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(MARK_ORIGIN);
+                } catch (SQLException e) {
+                    closeQuietly(connection);
+                    throw e;
+                }
+                logger.debug("Opened connection for pool {}", name);
+                return connection;
+            } catch (SQLException e) {
+                lastException = e;
+                logger.error("Failed to connect to the database for pool {}. Attempt: {}", name, attempt);
+            }
+        }
+        throw new SQLException("Unable to connect to the database after " + CONNECT_ATTEMPTS + " attempts", lastException);
+    }
+
+    private void housekeep() {
+        try {
+            reportLeaks();
+            evictIdle();
+            fillToMinimum();
+        } catch (RuntimeException e) {
+            logger.error("Housekeeping of pool {} failed", name, e);
+        }
+    }
+
+    private void reportLeaks() {
+        if (leakDetectionMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Lease lease : leased.values()) {
+            if (!lease.reported && now - lease.acquiredAt > leakDetectionMs) {
+                lease.reported = true;
+                logger.warn("Connection from pool {} held by thread {} for more than {} ms, possible leak",
+                        name, lease.thread, leakDetectionMs, lease.origin);
+            }
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        while (idle.size() > minSize) {
+            IdleConnection oldest = idle.peekLast();
+            if (oldest == null || now - oldest.since < IDLE_TIMEOUT_MS || !idle.removeLastOccurrence(oldest)) {
+                return;
+            }
+            closeQuietly(oldest.connection);
+        }
+    }
+
+    private void fillToMinimum() {
+        while (!closed && idle.size() < minSize && idle.size() + leased.size() < maxSize) {
+            try {
+                idle.offerLast(new IdleConnection(open(), System.currentTimeMillis()));
+            } catch (SQLException e) {
+                logger.error("Could not pre-fill pool {}", name, e);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        IdleConnection candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            closeQuietly(candidate.connection);
+        }
+        if (!leased.isEmpty()) {
+            logger.info("Pool {} closed with {} connections still in use; they will be closed on release", name, leased.size());
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.debug("Failed to close pooled connection", e);
+        }
+    }
+
+    private record IdleConnection(Connection connection, long since) {
+    }
+
+    private static final class Lease {
+        private final long acquiredAt = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final Exception origin;
+        private volatile boolean reported;
+
+        private Lease(Exception origin) {
+            this.origin = origin;
+        }
+    }
+}
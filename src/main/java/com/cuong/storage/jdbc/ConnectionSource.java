@@ -0,0 +1,13 @@
+package com.cuong.storage.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Hands out the connection bound to the current Keycloak session, borrowing it on first use.
+ */
+@FunctionalInterface
+public interface ConnectionSource {
+
+    Connection getConnection() throws SQLException;
+}
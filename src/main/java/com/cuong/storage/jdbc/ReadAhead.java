@@ -0,0 +1,45 @@
+package com.cuong.storage.jdbc;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Pulls a stream's elements in chunks of up to {@code size} ahead of its consumer. Mapping rows
+ * to objects that register themselves for a batched follow-up query, ahead of their use, lets the
+ * first of them find the rest of its chunk registered, while memory stays bounded by the chunk.
+ */
+public final class ReadAhead {
+
+    private ReadAhead() {
+    }
+
+    /**
+     * Closing the returned stream closes {@code source}.
+     */
+    public static <T> Stream<T> of(Stream<T> source, int size) {
+        Iterator<T> iterator = source.iterator();
+        ArrayDeque<T> buffer = new ArrayDeque<>(size);
+        Spliterator<T> chunks = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (buffer.isEmpty()) {
+                    while (buffer.size() < size && iterator.hasNext()) {
+                        buffer.add(iterator.next());
+                    }
+                }
+                T next = buffer.poll();
+                if (next == null) {
+                    return false;
+                }
+                action.accept(next);
+                return true;
+            }
+        };
+        return StreamSupport.stream(chunks, false).onClose(source::close);
+    }
+}
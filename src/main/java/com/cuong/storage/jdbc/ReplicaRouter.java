@@ -0,0 +1,161 @@
+package com.cuong.storage.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads read-only queries over the PostgreSQL streaming replicas of the primary.
+ * <p>
+ * {@link #checkHealth()} runs periodically: a replica is used only while it answers and its
+ * replay lag is at most {@code maxLagMs}. Reads are dealt round-robin over the healthy replicas;
+ * with none healthy, {@link #pickReplica()} returns {@code null} and the caller reads from the
+ * primary. Lag is zero while the replica has replayed everything it received, and otherwise the
+ * age of the last replayed transaction. A replica whose WAL receiver is not streaming receives
+ * nothing to replay, so it is unhealthy however current it looks.
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    /**
+     * {@code NULL} when no WAL receiver is streaming. Roles without {@code pg_read_all_stats} see
+     * the receiver's row but not its status, so a hidden status counts as streaming.
+     */
+    private static final String LAG_QUERY = "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 "
+            + "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status IS NULL OR status = 'streaming') THEN NULL "
+            + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+            + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLagMs;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile Replica[] healthy = new Replica[0];
+
+    public ReplicaRouter(List<ConnectionPool> pools, long maxLagMs) {
+        pools.forEach(pool -> replicas.add(new Replica(pool)));
+        this.maxLagMs = maxLagMs;
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * @return the pool of the next healthy replica, or {@code null} to read from the primary
+     */
+    public ConnectionPool pickReplica() {
+        Replica[] candidates = healthy;
+        if (candidates.length == 0) {
+            return null;
+        }
+        return candidates[Math.floorMod(next.getAndIncrement(), candidates.length)].pool;
+    }
+
+    /**
+     * Takes a replica out of rotation until the next health check, after a failed acquire.
+     */
+    public void markFailed(ConnectionPool pool) {
+        for (Replica replica : replicas) {
+            if (replica.pool == pool && replica.healthy) {
+                logger.warn("Replica {} failed, reading from the primary until it recovers", pool.getName());
+                replica.healthy = false;
+            }
+        }
+        refresh();
+    }
+
+    public void checkHealth() {
+        for (Replica replica : replicas) {
+            boolean wasHealthy = replica.healthy;
+            Connection connection = null;
+            try {
+                connection = replica.pool.acquire();
+                boolean streaming;
+                try (PreparedStatement stmt = connection.prepareStatement(LAG_QUERY); ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    replica.lagMs = rs.getLong(1);
+                    streaming = !rs.wasNull();
+                }
+                if (!streaming) {
+                    replica.healthy = false;
+                    replica.lagMs = -1;
+                    if (wasHealthy) {
+                        logger.warn("Replica {} is not receiving WAL from the primary, reading from other endpoints", replica.pool.getName());
+                    }
+                } else {
+                    replica.healthy = replica.lagMs <= maxLagMs;
+                    if (!replica.healthy && wasHealthy) {
+                        logger.warn("Replica {} is {} ms behind the primary, reading from other endpoints", replica.pool.getName(), replica.lagMs);
+                    }
+                }
+            } catch (SQLException e) {
+                replica.healthy = false;
+                replica.lagMs = -1;
+                if (wasHealthy) {
+                    logger.warn("Health check of replica {} failed", replica.pool.getName(), e);
+                }
+            } finally {
+                if (connection != null) {
+                    replica.pool.release(connection);
+                }
+            }
+            if (replica.healthy && !wasHealthy) {
+                logger.info("Replica {} is healthy, lag {} ms", replica.pool.getName(), replica.lagMs);
+            }
+        }
+        refresh();
+    }
+
+    private void refresh() {
+        healthy = replicas.stream().filter(replica -> replica.healthy).toArray(Replica[]::new);
+    }
+
+    public List<ConnectionPool> getPools() {
+        return replicas.stream().map(replica -> replica.pool).toList();
+    }
+
+    public boolean isHealthy(ConnectionPool pool) {
+        return replicas.stream().anyMatch(replica -> replica.pool == pool && replica.healthy);
+    }
+
+    /**
+     * @return the lag measured by the last health check, or -1 if the replica did not answer
+     */
+    public long getLagMs(ConnectionPool pool) {
+        return replicas.stream().filter(replica -> replica.pool == pool).mapToLong(replica -> replica.lagMs).findFirst().orElse(-1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("healthy=").append(healthy.length).append('/').append(replicas.size());
+        for (Replica replica : replicas) {
+            text.append(' ').append(replica.pool.getName()).append(replica.healthy ? "(lag=" + replica.lagMs + "ms)" : "(down)");
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void close() {
+        healthy = new Replica[0];
+        replicas.forEach(replica -> replica.pool.close());
+    }
+
+    private static final class Replica {
+
+        final ConnectionPool pool;
+        volatile boolean healthy;
+        volatile long lagMs = -1;
+
+        Replica(ConnectionPool pool) {
+            this.pool = pool;
+        }
+    }
+}
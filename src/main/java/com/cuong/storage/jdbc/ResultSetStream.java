@@ -0,0 +1,90 @@
+package com.cuong.storage.jdbc;
+
+import org.keycloak.models.ModelException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Exposes a forward-only {@link ResultSet} as a lazily consumed {@link Stream}.
+ * <p>
+ * Rows are mapped one at a time as the stream is pulled, so memory use depends on the driver
+ * fetch size rather than on the number of matching rows. The statement is closed as soon as
+ * the rows are exhausted, when the stream is closed, or when mapping fails.
+ */
+public final class ResultSetStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResultSetStream.class);
+
+    private ResultSetStream() {
+    }
+
+    public static <T> Stream<T> of(PreparedStatement stmt, RowMapper<T> mapper, Runnable onClose) throws SQLException {
+        return of(stmt, stmt.executeQuery(), mapper, onClose);
+    }
+
+    /**
+     * Streams a result set already obtained from {@code stmt}, for queries executed elsewhere.
+     */
+    public static <T> Stream<T> of(PreparedStatement stmt, ResultSet rs, RowMapper<T> mapper, Runnable onClose) {
+        Cursor<T> cursor = new Cursor<>(stmt, rs, mapper, onClose);
+        return StreamSupport.stream(cursor, false).onClose(cursor::close);
+    }
+
+    private static final class Cursor<T> extends Spliterators.AbstractSpliterator<T> {
+
+        private final PreparedStatement stmt;
+        private final ResultSet rs;
+        private final RowMapper<T> mapper;
+        private final Runnable onClose;
+        private boolean closed;
+
+        private Cursor(PreparedStatement stmt, ResultSet rs, RowMapper<T> mapper, Runnable onClose) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.stmt = stmt;
+            this.rs = rs;
+            this.mapper = mapper;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                action.accept(mapper.map(rs));
+                return true;
+            } catch (SQLException e) {
+                close();
+                throw new ModelException("Failed to read the next row", e);
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.debug("Failed to close cursor statement", e);
+            } finally {
+                onClose.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.cuong.storage.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms for the provider's SPI operations, published to Keycloak's Micrometer registry
+ * and therefore on the server's {@code /metrics} endpoint when {@code metrics-enabled=true}.
+ * <p>
+ * {@code user_storage_operation_seconds} is tagged with the operation and its outcome;
+ * {@code user_storage_phase_seconds} splits an operation into connection acquire, database and
+ * bcrypt time, and {@code user_storage_replica_lag}/{@code user_storage_replica_healthy} report the
+ * read replicas. Every timer is registered up front and looked up by enum ordinal, so recording is
+ * an array access plus {@link Timer#record(long, TimeUnit)} and allocates nothing.
+ */
+public class ProviderMetrics implements AutoCloseable {
+
+    public enum Outcome {
+        FOUND,
+        NOT_FOUND,
+        VALID,
+        INVALID,
+        SUCCESS,
+        REJECTED,
+        ERROR
+    }
+
+    public enum Operation {
+        GET_BY_ID(Outcome.FOUND, Outcome.NOT_FOUND, Outcome.ERROR),
+        GET_BY_USERNAME(Outcome.FOUND, Outcome.NOT_FOUND, Outcome.ERROR),
+        GET_BY_EMAIL(Outcome.FOUND, Outcome.NOT_FOUND, Outcome.ERROR),
+        IS_VALID(Outcome.VALID, Outcome.INVALID, Outcome.NOT_FOUND, Outcome.REJECTED, Outcome.ERROR),
+        SEARCH(Outcome.SUCCESS, Outcome.ERROR),
+        COUNT(Outcome.SUCCESS, Outcome.ERROR),
+        UPDATE_CREDENTIAL(Outcome.SUCCESS, Outcome.NOT_FOUND, Outcome.REJECTED, Outcome.ERROR),
+        ADD_USER(Outcome.SUCCESS, Outcome.ERROR),
+        REMOVE_USER(Outcome.SUCCESS, Outcome.NOT_FOUND, Outcome.ERROR);
+
+        private final Outcome[] outcomes;
+
+        Operation(Outcome... outcomes) {
+            this.outcomes = outcomes;
+        }
+    }
+
+    public enum Phase {
+        ACQUIRE,
+        DB,
+        BCRYPT
+    }
+
+    static final String OPERATION_METRIC = "user.storage.operation";
+    static final String PHASE_METRIC = "user.storage.phase";
+    static final String REPLICA_LAG_METRIC = "user.storage.replica.lag";
+    static final String REPLICA_HEALTHY_METRIC = "user.storage.replica.healthy";
+    static final String KEY_FILTER_BYTES_METRIC = "user.storage.key.filter.bytes";
+    static final String KEY_FILTER_FPP_METRIC = "user.storage.key.filter.false.positive.rate";
+    static final String KEY_FILTER_MISSES_METRIC = "user.storage.key.filter.definite.misses";
+
+    private final MeterRegistry registry;
+    private final String componentId;
+    private final Timer[][] operations = new Timer[Operation.values().length][Outcome.values().length];
+    private final Timer[][] phases = new Timer[Operation.values().length][Phase.values().length];
+    private final List<Meter> meters = new ArrayList<>();
+
+    public ProviderMetrics(String componentId) {
+        this(Metrics.globalRegistry, componentId);
+    }
+
+    ProviderMetrics(MeterRegistry registry, String componentId) {
+        this.registry = registry;
+        this.componentId = componentId;
+        for (Operation operation : Operation.values()) {
+            String op = tag(operation);
+            for (Outcome outcome : operation.outcomes) {
+                operations[operation.ordinal()][outcome.ordinal()] = register(Timer.builder(OPERATION_METRIC)
+                        .description("Latency of user storage provider operations")
+                        .tags("component", componentId, "operation", op, "outcome", tag(outcome)));
+            }
+            for (Phase phase : Phase.values()) {
+                phases[operation.ordinal()][phase.ordinal()] = register(Timer.builder(PHASE_METRIC)
+                        .description("Time user storage provider operations spend acquiring connections, in the database and in bcrypt")
+                        .tags("component", componentId, "operation", op, "phase", tag(phase)));
+            }
+        }
+    }
+
+    private Timer register(Timer.Builder builder) {
+        Timer timer = builder
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(registry);
+        meters.add(timer);
+        return timer;
+    }
+
+    private static String tag(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Records an operation that started at {@code startNanos} ({@link System#nanoTime()}).
+     * Outcomes an operation does not declare are recorded as {@link Outcome#ERROR}.
+     */
+    public void record(Operation operation, Outcome outcome, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        Timer timer = operations[operation.ordinal()][outcome.ordinal()];
+        if (timer == null) {
+            timer = operations[operation.ordinal()][Outcome.ERROR.ordinal()];
+        }
+        timer.record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordPhase(Operation operation, Phase phase, long startNanos) {
+        phases[operation.ordinal()][phase.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Publishes the replication lag in milliseconds (-1 while unreachable) and health (1 or 0) of a read replica.
+     */
+    public void registerReplica(String replica, Supplier<Number> lagMs, BooleanSupplier healthy) {
+        meters.add(Gauge.builder(REPLICA_LAG_METRIC, lagMs)
+                .description("Replication lag of read replicas measured by the last health check, in milliseconds")
+                .tags("component", componentId, "replica", replica)
+                .register(registry));
+        meters.add(Gauge.builder(REPLICA_HEALTHY_METRIC, () -> healthy.getAsBoolean() ? 1 : 0)
+                .description("Whether a read replica currently receives reads")
+                .tags("component", componentId, "replica", replica)
+                .register(registry));
+    }
+
+    /**
+     * Publishes the size and estimated false-positive rate of the negative lookup filter, and how many
+     * lookups it answered without the database.
+     */
+    public void registerKeyFilter(Supplier<Number> memoryBytes, Supplier<Number> falsePositiveRate, Supplier<Number> definiteMisses) {
+        meters.add(Gauge.builder(KEY_FILTER_BYTES_METRIC, memoryBytes)
+                .description("Memory used by the negative lookup filter")
+                .tags("component", componentId)
+                .register(registry));
+        meters.add(Gauge.builder(KEY_FILTER_FPP_METRIC, falsePositiveRate)
+                .description("False-positive rate of the negative lookup filter, estimated from the share of bits set")
+                .tags("component", componentId)
+                .register(registry));
+        meters.add(FunctionCounter.builder(KEY_FILTER_MISSES_METRIC, definiteMisses, value -> value.get().doubleValue())
+                .description("Lookups of unknown users answered without querying the database")
+                .tags("component", componentId)
+                .register(registry));
+    }
+
+    /**
+     * Removes this component's meters, so a reconfigured or deleted component stops reporting.
+     */
+    @Override
+    public void close() {
+        meters.forEach(registry::remove);
+        meters.clear();
+    }
+}
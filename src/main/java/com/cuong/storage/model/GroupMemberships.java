@@ -0,0 +1,140 @@
+package com.cuong.storage.model;
+
+import com.cuong.storage.jdbc.ShardConnectionSource;
+import com.cuong.storage.shard.Sharding;
+import org.keycloak.models.ModelException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Group memberships of the users handed out by one provider instance, stored in the
+ * {@code user_groups} table of each user's shard. Memberships are read through the session's read
+ * connection, which may be a replica, and changed on the primary.
+ * <p>
+ * Every adapter registers its user here when it is created. The first time any of them needs its
+ * groups, the memberships of up to {@link #BATCH_SIZE} registered users of its shard are read with a single
+ * {@code user_id = ANY(?)} query, so listing a page of users and their groups costs one query
+ * rather than one per user. Only the latest {@link #MAX_PENDING} registrations are kept, so that
+ * streaming many users whose groups are never read holds on to none of them; a user dropped that
+ * way still loads, on its own. Instances are not thread-safe, like the Keycloak session they belong to.
+ */
+public class GroupMemberships {
+
+    static final int BATCH_SIZE = 500;
+    static final int MAX_PENDING = 2 * BATCH_SIZE;
+
+    private final ShardConnectionSource readSource;
+    private final ShardConnectionSource writeSource;
+    private final int shardCount;
+    private final Map<Long, Set<String>> loaded = new HashMap<>();
+    private final Set<Long> pending = new LinkedHashSet<>();
+
+    public GroupMemberships(ShardConnectionSource readSource, ShardConnectionSource writeSource, int shardCount) {
+        this.readSource = readSource;
+        this.writeSource = writeSource;
+        this.shardCount = shardCount;
+    }
+
+    void register(long userId) {
+        if (!loaded.containsKey(userId) && pending.add(userId) && pending.size() > MAX_PENDING) {
+            Iterator<Long> oldest = pending.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return the ids of the groups the user is a direct member of
+     */
+    Set<String> getGroupIds(long userId) {
+        Set<String> groupIds = loaded.get(userId);
+        if (groupIds == null) {
+            load(userId);
+            groupIds = loaded.get(userId);
+        }
+        return groupIds;
+    }
+
+    private void load(long userId) {
+        List<Long> batch = new ArrayList<>();
+        batch.add(userId);
+        pending.remove(userId);
+        int shard = Sharding.shardOf(userId);
+        for (Iterator<Long> it = pending.iterator(); it.hasNext() && batch.size() < BATCH_SIZE; ) {
+            long pendingId = it.next();
+            if (Sharding.shardOf(pendingId) == shard) {
+                batch.add(pendingId);
+                it.remove();
+            }
+        }
+
+        Map<Long, Set<String>> result = new HashMap<>();
+        batch.forEach(id -> result.put(id, new HashSet<>()));
+        try {
+            Connection connection = readSource.getConnection(shard);
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT user_id, group_id FROM user_groups WHERE user_id = ANY(?)")) {
+                stmt.setArray(1, connection.createArrayOf("bigint", batch.stream().map(Sharding::localId).toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        result.get(Sharding.globalId(shard, rs.getLong(1))).add(rs.getString(2));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new ModelException("Failed to load group memberships of " + batch.size() + " users", e);
+        }
+        loaded.putAll(result);
+    }
+
+    void join(long userId, String groupId) {
+        update("INSERT INTO user_groups (user_id, group_id) VALUES (?, ?) ON CONFLICT DO NOTHING", userId, groupId);
+        Set<String> groupIds = loaded.get(userId);
+        if (groupIds != null) {
+            groupIds.add(groupId);
+        }
+    }
+
+    void leave(long userId, String groupId) {
+        update("DELETE FROM user_groups WHERE user_id = ? AND group_id = ?", userId, groupId);
+        Set<String> groupIds = loaded.get(userId);
+        if (groupIds != null) {
+            groupIds.remove(groupId);
+        }
+    }
+
+    /**
+     * Drops all memberships of a group that is being removed from the realm.
+     */
+    public void removeGroup(String groupId) {
+        for (int shard = 0; shard < shardCount; shard++) {
+            try (PreparedStatement stmt = writeSource.getConnection(shard).prepareStatement("DELETE FROM user_groups WHERE group_id = ?")) {
+                stmt.setString(1, groupId);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new ModelException("Failed to remove memberships of group " + groupId + " on shard " + shard, e);
+            }
+        }
+        loaded.values().forEach(groupIds -> groupIds.remove(groupId));
+    }
+
+    private void update(String sql, long userId, String groupId) {
+        try (PreparedStatement stmt = writeSource.getConnection(Sharding.shardOf(userId)).prepareStatement(sql)) {
+            stmt.setLong(1, Sharding.localId(userId));
+            stmt.setString(2, groupId);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new ModelException("Failed to update membership of user " + userId + " in group " + groupId, e);
+        }
+    }
+}
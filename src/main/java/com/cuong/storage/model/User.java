@@ -2,6 +2,9 @@ package com.cuong.storage.model;
 
 import jakarta.persistence.*;
 
+import java.util.List;
+import java.util.Map;
+
 @Entity
 @Table(name="users")
 public class User {
@@ -24,6 +27,30 @@ public class User {
     @Column(name = "password", nullable = false, length = 255)
     private String password;
 
+    /**
+     * Raw {@code attributes} jsonb document. The column is managed by SchemaManager and read over
+     * JDBC, so it is not mapped for JPA; the document is only parsed when an attribute is read.
+     */
+    @Transient
+    private String attributesJson;
+
+    @Transient
+    private Map<String, List<String>> attributes;
+
+    /**
+     * False while the names, password hash and attributes have not been read, for users read
+     * with the {@link UserColumns#IDENTITY} projection.
+     */
+    @Transient
+    private boolean profileLoaded = true;
+
+    /**
+     * Read from a replica, which may not have replayed the latest write yet. Such rows are not put
+     * in the shared lookup cache, where they could outlive the eviction of the change.
+     */
+    @Transient
+    private boolean fromReplica;
+
     public Long getId() {
         return id;
     }
@@ -72,4 +99,50 @@ public class User {
         this.password = password;
     }
 
+    public void setAttributesJson(String attributesJson) {
+        this.attributesJson = attributesJson;
+        this.attributes = null;
+    }
+
+    /**
+     * @return the mutable attribute map, parsed from the jsonb document on first access
+     */
+    public Map<String, List<String>> getAttributes() {
+        if (attributes == null) {
+            attributes = UserAttributes.parse(attributesJson);
+        }
+        return attributes;
+    }
+
+    public boolean isProfileLoaded() {
+        return profileLoaded;
+    }
+
+    public void setProfileLoaded(boolean profileLoaded) {
+        this.profileLoaded = profileLoaded;
+    }
+
+    public boolean isFromReplica() {
+        return fromReplica;
+    }
+
+    public void setFromReplica(boolean fromReplica) {
+        this.fromReplica = fromReplica;
+    }
+
+    public User copy() {
+        User copy = new User();
+        copy.setId(id);
+        copy.setFirstName(firstName);
+        copy.setLastName(lastName);
+        copy.setEmail(email);
+        copy.setUsername(username);
+        copy.setPassword(password);
+        copy.attributesJson = attributesJson;
+        copy.attributes = attributes == null ? null : UserAttributes.copy(attributes);
+        copy.profileLoaded = profileLoaded;
+        copy.fromReplica = fromReplica;
+        return copy;
+    }
+
 }
\ No newline at end of file
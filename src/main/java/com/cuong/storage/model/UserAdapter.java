@@ -1,5 +1,10 @@
 package com.cuong.storage.model;
 
+import com.cuong.storage.cache.UserKeyFilter;
+import com.cuong.storage.cache.UserLookupCache;
+import com.cuong.storage.jdbc.ConnectionSource;
+import com.cuong.storage.shard.ShardDirectory;
+import com.cuong.storage.shard.Sharding;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.UserCredentialManager;
@@ -10,22 +15,58 @@ import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 public class UserAdapter extends AbstractUserAdapterFederatedStorage {
 
+    /**
+     * User attributes stored in columns of the {@code users} table, and the only columns an
+     * adapter is allowed to update.
+     */
+    private static final Map<String, String> COLUMNS = Map.of(
+            UserModel.USERNAME, "username",
+            UserModel.EMAIL, "email",
+            UserModel.FIRST_NAME, "firstname",
+            UserModel.LAST_NAME, "lastname");
+
     private final String id;
     private final User user;
-    private final Connection connection;
+    private final ConnectionSource connectionSource;
+    private final UserLookupCache cache;
+    private final UserKeyFilter userKeys;
+    private final GroupMemberships memberships;
+    private final UserProfiles profiles;
+    private final ShardDirectory directory;
+
+    /** Username and email as last written, to update the shard directory when either changes. */
+    private String storedUsername;
+    private String storedEmail;
+    private final Map<String, String> dirtyColumns = new LinkedHashMap<>();
+    private final Map<String, List<String>> dirtyAttributes = new LinkedHashMap<>();
+    private boolean flushEnlisted;
 
-    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel storageProviderModel, User user, Connection connection) {
+    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel storageProviderModel, User user,
+                       ConnectionSource connectionSource, UserLookupCache cache, UserKeyFilter userKeys,
+                       GroupMemberships memberships, UserProfiles profiles, ShardDirectory directory) {
         super(session, realm, storageProviderModel);
         this.user = user;
-        this.id = StorageId.keycloakId(storageProviderModel, user.getId().toString());
-        this.connection = connection;
+        this.id = StorageId.keycloakId(storageProviderModel, Sharding.externalId(user.getId()));
+        this.connectionSource = connectionSource;
+        this.cache = cache;
+        this.userKeys = userKeys;
+        this.memberships = memberships;
+        this.profiles = profiles;
+        this.directory = directory;
+        this.storedUsername = user.getUsername();
+        this.storedEmail = user.getEmail();
+        memberships.register(user.getId());
+        profiles.register(user);
     }
 
     @Override
@@ -35,7 +76,7 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public void setUsername(String s) {
-        user.setUsername(s);
+        setColumn(UserModel.USERNAME, s);
     }
 
     @Override
@@ -48,72 +89,256 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
         return user.getEmail();
     }
 
+    @Override
+    public String getFirstName() {
+        return profile().getFirstName();
+    }
+
+    @Override
+    public String getLastName() {
+        return profile().getLastName();
+    }
+
     public String getPassword() {
-        return user.getPassword();
+        return profile().getPassword();
     }
 
     @Override
     public void setEmail(String email) {
-        super.setEmail(email);
-        updateDatabase("email", email);
+        setColumn(UserModel.EMAIL, email);
     }
 
     @Override
     public void setFirstName(String firstName) {
-        super.setFirstName(firstName);
-        updateDatabase("firstname", firstName);
+        setColumn(UserModel.FIRST_NAME, firstName);
     }
 
     @Override
     public void setLastName(String lastName) {
-        super.setLastName(lastName);
-        updateDatabase("lastname", lastName);
+        setColumn(UserModel.LAST_NAME, lastName);
+    }
+
+    @Override
+    public void setSingleAttribute(String name, String value) {
+        if (COLUMNS.containsKey(name)) {
+            setColumn(name, value);
+        } else {
+            setNativeAttribute(name, value == null ? null : List.of(value));
+        }
     }
 
     @Override
     public void setAttribute(String name, List<String> values) {
-        super.setAttribute(name, values);
-        if ("firstName".equals(name)) {
-            updateDatabase("firstname", values.get(0));
-        } else if ("lastName".equals(name)) {
-            updateDatabase("lastname", values.get(0));
-        } else if ("email".equals(name)) {
-            updateDatabase("email", values.get(0));
-        }
-    }
-
-    private void updateDatabase(String field, String value) {
-        String query = "UPDATE users SET " + field + " = ? WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, value);
-            stmt.setLong(2, Long.parseLong(StorageId.externalId(getId())));
-            stmt.executeUpdate();
+        if (COLUMNS.containsKey(name)) {
+            setColumn(name, values == null || values.isEmpty() ? null : values.get(0));
+        } else {
+            List<String> nonNull = values == null ? List.of() : values.stream().filter(Objects::nonNull).toList();
+            setNativeAttribute(name, nonNull.isEmpty() ? null : nonNull);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (COLUMNS.containsKey(name)) {
+            setColumn(name, null);
+        } else {
+            setNativeAttribute(name, null);
+        }
+    }
+
+    @Override
+    public String getFirstAttribute(String name) {
+        if (COLUMNS.containsKey(name)) {
+            return getColumn(name);
+        }
+        List<String> values = profile().getAttributes().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Stream<String> getAttributeStream(String name) {
+        if (COLUMNS.containsKey(name)) {
+            String value = getColumn(name);
+            return value == null ? Stream.empty() : Stream.of(value);
+        }
+        List<String> values = profile().getAttributes().get(name);
+        return values == null ? Stream.empty() : values.stream();
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
+        profile().getAttributes().forEach((name, values) -> attributes.put(name, new ArrayList<>(values)));
+        for (String name : COLUMNS.keySet()) {
+            String value = getColumn(name);
+            attributes.put(name, value == null ? List.of() : List.of(value));
+        }
+        return attributes;
+    }
+
+    @Override
+    public Stream<GroupModel> getGroupsStream() {
+        Stream<GroupModel> groups = memberships.getGroupIds(user.getId()).stream()
+                .map(realm::getGroupById)
+                .filter(Objects::nonNull);
+        if (appendDefaultGroups()) {
+            groups = Stream.concat(groups, realm.getDefaultGroupsStream());
+        }
+        return Stream.concat(groups, getGroupsInternal().stream());
+    }
+
+    @Override
+    public void joinGroup(GroupModel group) {
+        memberships.join(user.getId(), group.getId());
+    }
+
+    @Override
+    public void leaveGroup(GroupModel group) {
+        memberships.leave(user.getId(), group.getId());
+    }
+
+    private String getColumn(String name) {
+        return switch (name) {
+            case UserModel.USERNAME -> user.getUsername();
+            case UserModel.EMAIL -> user.getEmail();
+            case UserModel.FIRST_NAME -> profile().getFirstName();
+            default -> profile().getLastName();
+        };
+    }
+
+    /**
+     * @return the user, with its names, password hash and attributes read if it was listed without them
+     */
+    private User profile() {
+        profiles.load(user);
+        return user;
+    }
+
+    /**
+     * Updates the in-memory attribute and marks it dirty; {@code null} removes it. Dirty
+     * attributes are merged into the jsonb document by the same UPDATE as dirty columns, so
+     * concurrent changes to other attributes of the user are kept.
+     */
+    private void setNativeAttribute(String name, List<String> values) {
+        if (values == null) {
+            profile().getAttributes().remove(name);
+        } else {
+            profile().getAttributes().put(name, new ArrayList<>(values));
+        }
+        dirtyAttributes.put(name, values);
+        enlistFlush();
+    }
+
+    /**
+     * Updates the in-memory value and marks the column dirty. All dirty columns and attributes are written
+     * with a single UPDATE when the Keycloak transaction commits. A new username or email is added to the
+     * negative lookup filter right away, so it can never hide the user.
+     */
+    private void setColumn(String name, String value) {
+        switch (name) {
+            case UserModel.USERNAME -> {
+                user.setUsername(value);
+                userKeys.add(value, null);
+            }
+            case UserModel.EMAIL -> {
+                user.setEmail(value);
+                userKeys.add(null, value);
+            }
+            // Loaded first, so that reading the profile later cannot overwrite the new value
+            case UserModel.FIRST_NAME -> profile().setFirstName(value);
+            default -> profile().setLastName(value);
+        }
+        dirtyColumns.put(COLUMNS.get(name), value);
+        enlistFlush();
+    }
+
+    private void enlistFlush() {
+        if (flushEnlisted) {
+            return;
+        }
+        KeycloakTransactionManager transactionManager = session.getTransactionManager();
+        if (!transactionManager.isActive()) {
+            flush();
+            return;
+        }
+        flushEnlisted = true;
+        transactionManager.enlistPrepare(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                flushEnlisted = false;
+                flush();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                flushEnlisted = false;
+                dirtyColumns.clear();
+                dirtyAttributes.clear();
+            }
+        });
+    }
+
+    private void flush() {
+        if (dirtyColumns.isEmpty() && dirtyAttributes.isEmpty()) {
+            return;
+        }
+        StringBuilder query = new StringBuilder("UPDATE users SET ");
+        int index = 0;
+        for (String column : dirtyColumns.keySet()) {
+            query.append(index++ == 0 ? "" : ", ").append(column).append(" = ?");
+        }
+        if (!dirtyAttributes.isEmpty()) {
+            query.append(index == 0 ? "" : ", ").append("attributes = (attributes - ?::text[]) || ?::jsonb");
+        }
+        query.append(" WHERE id = ?");
+
+        try {
+            Connection connection = connectionSource.getConnection();
+            try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
+                int param = 1;
+                for (String value : dirtyColumns.values()) {
+                    stmt.setString(param++, value);
+                }
+                if (!dirtyAttributes.isEmpty()) {
+                    List<String> removed = new ArrayList<>();
+                    Map<String, List<String>> changed = new LinkedHashMap<>();
+                    dirtyAttributes.forEach((name, values) -> {
+                        if (values == null) {
+                            removed.add(name);
+                        } else {
+                            changed.put(name, values);
+                        }
+                    });
+                    stmt.setArray(param++, connection.createArrayOf("text", removed.toArray()));
+                    stmt.setString(param++, UserAttributes.toJson(changed));
+                }
+                stmt.setLong(param, Sharding.localId(user.getId()));
+                stmt.executeUpdate();
+            }
+            updateDirectory();
         } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
-
-//    private void updateDatabase(String field, String value) {
-//        List<String> validFields = Arrays.asList("name", "email", "phone");
-//        if (!validFields.contains(field)) {
-//            throw new IllegalArgumentException("Invalid field: " + field);
-//        }
-//
-//        String query = "UPDATE users SET " + field + " = ? WHERE id = ?";
-//        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-//            stmt.setString(1, value);
-//            stmt.setLong(2, Long.parseLong(StorageId.externalId(getId())));
-//            int rowsUpdated = stmt.executeUpdate();
-//
-//            if (rowsUpdated > 0) {
-//                System.out.println("Update successful: " + rowsUpdated + " rows updated.");
-//            } else {
-//                System.out.println("No rows were updated.");
-//            }
-//        } catch (SQLException e) {
-//            e.printStackTrace();
-//            throw new RuntimeException("Database update failed", e);
-//        }
-//    }
-}
+            throw new ModelException("Failed to update " + dirtyColumns.keySet() + " and attributes " + dirtyAttributes.keySet()
+                    + " of user " + user.getId(), e);
+        } finally {
+            dirtyColumns.clear();
+            dirtyAttributes.clear();
+            cache.invalidate(user.getId());
+        }
+    }
 
+    /**
+     * Moves the directory entries of a changed username or email to the new value; the user stays on its shard.
+     */
+    private void updateDirectory() {
+        boolean usernameChanged = !Objects.equals(storedUsername, user.getUsername());
+        boolean emailChanged = !Objects.equals(storedEmail, user.getEmail());
+        if (!usernameChanged && !emailChanged) {
+            return;
+        }
+        int shard = Sharding.shardOf(user.getId());
+        directory.unregister(shard, usernameChanged ? storedUsername : null, emailChanged ? storedEmail : null);
+        directory.register(shard, usernameChanged ? user.getUsername() : null, emailChanged ? user.getEmail() : null);
+        storedUsername = user.getUsername();
+        storedEmail = user.getEmail();
+    }
+}
@@ -0,0 +1,51 @@
+package com.cuong.storage.model;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts between the {@code users.attributes} jsonb document and the attribute map. The
+ * document holds one array of strings per attribute name, e.g. {@code {"phone": ["+84..."]}}, so
+ * a containment query such as {@code attributes @> '{"phone": ["+84..."]}'} matches any user
+ * with that value and is served by the {@code jsonb_path_ops} GIN index.
+ */
+final class UserAttributes {
+
+    private static final TypeReference<Map<String, List<String>>> TYPE = new TypeReference<>() {
+    };
+
+    private UserAttributes() {
+    }
+
+    static Map<String, List<String>> parse(String json) {
+        if (json == null || json.isEmpty() || "{}".equals(json)) {
+            return new HashMap<>();
+        }
+        try {
+            Map<String, List<String>> attributes = JsonSerialization.mapper.readValue(json, TYPE);
+            return attributes == null ? new HashMap<>() : attributes;
+        } catch (IOException e) {
+            throw new IllegalStateException("Malformed users.attributes document", e);
+        }
+    }
+
+    static String toJson(Map<String, List<String>> attributes) {
+        try {
+            return JsonSerialization.mapper.writeValueAsString(attributes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serialize user attributes", e);
+        }
+    }
+
+    static Map<String, List<String>> copy(Map<String, List<String>> attributes) {
+        Map<String, List<String>> copy = new HashMap<>(attributes.size());
+        attributes.forEach((name, values) -> copy.put(name, new ArrayList<>(values)));
+        return copy;
+    }
+}
@@ -0,0 +1,71 @@
+package com.cuong.storage.model;
+
+import com.cuong.storage.shard.Sharding;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The column lists the provider selects from {@code users}, and their mapping to {@link User}.
+ * <p>
+ * Columns are read by position, in the order of the list, rather than looked up by name. Listings
+ * select only {@link #IDENTITY}; the {@link #PROFILE} columns, the password hash among them, are
+ * read by {@link UserProfiles} once an adapter needs them. Single-user lookups select
+ * {@link #FULL}, since the user they find is usually checked or rendered straight away.
+ * A query may select further columns after these.
+ */
+public final class UserColumns {
+
+    public static final String IDENTITY = "id, username, email";
+    public static final String PROFILE = "id, firstname, lastname, password, attributes";
+    public static final String FULL = "id, username, email, firstname, lastname, password, attributes";
+
+    /** Number of columns in {@link #IDENTITY}; the position of the first column a query adds after it is one more. */
+    public static final int IDENTITY_COUNT = 3;
+
+    private UserColumns() {
+    }
+
+    /**
+     * Maps a row selected with {@link #IDENTITY}; its profile is left to be loaded.
+     *
+     * @param shard the shard the row was read from, which becomes part of the user's id
+     */
+    public static User mapIdentity(ResultSet rs, int shard) throws SQLException {
+        User user = new User();
+        user.setId(Sharding.globalId(shard, rs.getLong(1)));
+        user.setUsername(rs.getString(2));
+        user.setEmail(rs.getString(3));
+        user.setProfileLoaded(false);
+        return user;
+    }
+
+    /**
+     * Maps a row selected with {@link #FULL}.
+     *
+     * @param shard the shard the row was read from, which becomes part of the user's id
+     */
+    public static User mapFull(ResultSet rs, int shard) throws SQLException {
+        User user = new User();
+        user.setId(Sharding.globalId(shard, rs.getLong(1)));
+        user.setUsername(rs.getString(2));
+        user.setEmail(rs.getString(3));
+        mapProfile(rs, 4, user);
+        return user;
+    }
+
+    /**
+     * Fills in the profile of {@code user} from a row selected with {@link #PROFILE}.
+     */
+    static void mapProfile(ResultSet rs, User user) throws SQLException {
+        mapProfile(rs, 2, user);
+    }
+
+    private static void mapProfile(ResultSet rs, int first, User user) throws SQLException {
+        user.setFirstName(rs.getString(first));
+        user.setLastName(rs.getString(first + 1));
+        user.setPassword(rs.getString(first + 2));
+        user.setAttributesJson(rs.getString(first + 3));
+        user.setProfileLoaded(true);
+    }
+}
@@ -0,0 +1,84 @@
+package com.cuong.storage.model;
+
+import com.cuong.storage.jdbc.ShardConnectionSource;
+import com.cuong.storage.shard.Sharding;
+import org.keycloak.models.ModelException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Profiles (names, password hash and attributes) of the users one provider instance listed
+ * without them, read through the session's read connection to each user's shard.
+ * <p>
+ * Every adapter of such a user registers it here when it is created. The first time any of them
+ * needs its profile, the profiles of up to {@link #BATCH_SIZE} registered users of its shard are
+ * read with a single {@code id = ANY(?)} query, so rendering a page of users costs one query on
+ * top of the listing rather than one per user. Only the latest {@link #MAX_PENDING} registrations
+ * are kept, so that streaming many users whose profiles are never read holds on to none of them;
+ * a user dropped that way still loads, on its own. Instances are not thread-safe, like the
+ * Keycloak session they belong to.
+ */
+public class UserProfiles {
+
+    static final int BATCH_SIZE = 500;
+    static final int MAX_PENDING = 2 * BATCH_SIZE;
+
+    private final ShardConnectionSource readSource;
+    private final Map<Long, User> pending = new LinkedHashMap<>();
+
+    public UserProfiles(ShardConnectionSource readSource) {
+        this.readSource = readSource;
+    }
+
+    void register(User user) {
+        if (!user.isProfileLoaded() && pending.put(user.getId(), user) == null && pending.size() > MAX_PENDING) {
+            Iterator<User> oldest = pending.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Reads the profile of {@code user}, and those of other registered users of its shard, unless it has been read.
+     */
+    void load(User user) {
+        if (user.isProfileLoaded()) {
+            return;
+        }
+        int shard = Sharding.shardOf(user.getId());
+        Map<Long, User> batch = new HashMap<>();
+        batch.put(Sharding.localId(user.getId()), user);
+        pending.remove(user.getId());
+        for (Iterator<User> it = pending.values().iterator(); it.hasNext() && batch.size() < BATCH_SIZE; ) {
+            User pendingUser = it.next();
+            if (Sharding.shardOf(pendingUser.getId()) == shard) {
+                batch.put(Sharding.localId(pendingUser.getId()), pendingUser);
+                it.remove();
+            }
+        }
+
+        try {
+            Connection connection = readSource.getConnection(shard);
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT " + UserColumns.PROFILE + " FROM users WHERE id = ANY(?)")) {
+                stmt.setArray(1, connection.createArrayOf("bigint", batch.keySet().toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        UserColumns.mapProfile(rs, batch.get(rs.getLong(1)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            batch.values().forEach(this::register);
+            throw new ModelException("Failed to load the profiles of " + batch.size() + " users", e);
+        }
+        // Users deleted since they were listed keep an empty profile
+        batch.values().forEach(loaded -> loaded.setProfileLoaded(true));
+    }
+}
@@ -1,8 +1,27 @@
 package com.cuong.storage.provider;
 
 import at.favre.lib.crypto.bcrypt.BCrypt;
+import com.cuong.storage.audit.AuditEventType;
+import com.cuong.storage.credential.PasswordHasher;
+import com.cuong.storage.credential.PasswordHasherBusyException;
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.jdbc.ReadAhead;
+import com.cuong.storage.jdbc.ReplicaRouter;
+import com.cuong.storage.jdbc.ResultSetStream;
+import com.cuong.storage.jdbc.RowMapper;
+import com.cuong.storage.metrics.ProviderMetrics.Operation;
+import com.cuong.storage.metrics.ProviderMetrics.Outcome;
+import com.cuong.storage.metrics.ProviderMetrics.Phase;
+import com.cuong.storage.model.GroupMemberships;
 import com.cuong.storage.model.User;
 import com.cuong.storage.model.UserAdapter;
+import com.cuong.storage.model.UserColumns;
+import com.cuong.storage.model.UserProfiles;
+import com.cuong.storage.search.UserCounts;
+import com.cuong.storage.search.UserSearchQuery;
+import com.cuong.storage.shard.Sharding;
+import com.cuong.storage.shard.SortKey;
+import com.cuong.storage.shard.SortedMerge;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.TypedQuery;
 import org.keycloak.component.ComponentModel;
@@ -18,14 +37,22 @@ import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
+import org.keycloak.util.JsonSerialization;
 import org.slf4j.LoggerFactory;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.io.IOException;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -33,11 +60,30 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
 
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(CustomUserStorageProvider.class);
 
+    private static final Map<String, String> ATTRIBUTE_COLUMNS = Map.of(
+            UserModel.USERNAME, "username",
+            UserModel.EMAIL, "email",
+            UserModel.FIRST_NAME, "firstname",
+            UserModel.LAST_NAME, "lastname");
+    /**
+     * How many listed users get an adapter ahead of the caller, so that the first profile or
+     * membership read of a page loads those of the whole chunk with one query.
+     */
+    private static final int LISTING_READ_AHEAD = 100;
+
     private ComponentModel componentModel;
     private KeycloakSession keycloakSession;
-    private Connection connection;
-
-    private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
+    private StorageContext context;
+    /** Per shard: held for writes, and for all reads of the shard once this session has used it. */
+    private final Map<Integer, HeldConnection> primaries = new HashMap<>();
+    /** Per shard: held for reads while this session has not touched the shard's primary. */
+    private final Map<Integer, HeldConnection> replicas = new HashMap<>();
+    private boolean releaseEnlisted;
+    private GroupMemberships memberships;
+    private UserProfiles profiles;
+    private final List<Stream<?>> openCursors = new ArrayList<>();
+    /** The SPI operation being served, so connection acquire time is attributed to it. */
+    private Operation activeOperation;
 
     public void setModel(ComponentModel componentModel) {
         this.componentModel = componentModel;
@@ -47,41 +93,173 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
         this.keycloakSession = keycloakSession;
     }
 
-    public void setConnection(Connection connection) {
-        this.connection = connection;
+    public void setContext(StorageContext context) {
+        this.context = context;
+        this.memberships = new GroupMemberships(this::getReadConnection, this::getConnection, context.getShards().size());
+        this.profiles = new UserProfiles(this::getReadConnection);
     }
 
-    @Override
-    public void close() {
-        logger.info("Closing database connection.");
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-                logger.info("Database connection closed successfully.");
+    /**
+     * Borrows a primary connection to the shard on first use and keeps it until the Keycloak
+     * transaction completes, so every statement of one request runs on the same connection per
+     * shard. Writes go here.
+     */
+    private Connection getConnection(int shard) throws SQLException {
+        HeldConnection held = primaries.get(shard);
+        if (held == null) {
+            held = acquire(context.getShard(shard).getPool());
+            primaries.put(shard, held);
+        }
+        return held.connection;
+    }
+
+    /**
+     * Connection for read-only queries of the shard: a healthy replica, unless this session already
+     * holds a primary connection to it, in which case it keeps reading there so that it sees its own writes.
+     */
+    private Connection getReadConnection(int shard) throws SQLException {
+        return readConnection(shard).connection;
+    }
+
+    private HeldConnection readConnection(int shard) throws SQLException {
+        HeldConnection held = primaries.get(shard);
+        if (held != null) {
+            return held;
+        }
+        held = replicas.get(shard);
+        if (held == null) {
+            ReplicaRouter router = context.getShard(shard).getReplicas();
+            ConnectionPool pool = router.pickReplica();
+            if (pool == null) {
+                getConnection(shard);
+                return primaries.get(shard);
+            }
+            try {
+                held = acquire(pool);
+            } catch (SQLException e) {
+                router.markFailed(pool);
+                getConnection(shard);
+                return primaries.get(shard);
             }
+            replicas.put(shard, held);
+        }
+        return held;
+    }
+
+    private HeldConnection acquire(ConnectionPool pool) throws SQLException {
+        long start = System.nanoTime();
+        HeldConnection held = new HeldConnection(pool, pool.acquire());
+        if (activeOperation != null) {
+            context.getMetrics().recordPhase(activeOperation, Phase.ACQUIRE, start);
+        }
+        KeycloakTransactionManager transactionManager = keycloakSession.getTransactionManager();
+        if (!releaseEnlisted && transactionManager.isActive()) {
+            releaseEnlisted = true;
+            transactionManager.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    releaseConnection();
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    releaseConnection();
+                }
+            });
+        }
+        return held;
+    }
+
+    private void releaseConnection() {
+        openCursors.forEach(Stream::close);
+        openCursors.clear();
+        primaries.values().forEach(held -> held.pool.release(held.connection));
+        primaries.clear();
+        replicas.values().forEach(held -> held.pool.release(held.connection));
+        replicas.clear();
+        releaseEnlisted = false;
+    }
+
+    /**
+     * Streams the rows of {@code stmt} through a server-side cursor. PostgreSQL only honours
+     * the fetch size inside a transaction, so autocommit is suspended while any cursor is open
+     * on {@code held} and restored (committing) once its last one is exhausted or closed.
+     */
+    private <T> Stream<T> openCursor(HeldConnection held, PreparedStatement stmt, RowMapper<T> mapper) throws SQLException {
+        beginCursor(held, stmt);
+        ResultSet rs;
+        try {
+            rs = stmt.executeQuery();
         } catch (SQLException e) {
-            logger.error("Error closing database connection", e);
+            cursorClosed(held);
+            throw e;
         }
+        return wrapCursor(held, stmt, rs, mapper);
+    }
+
+    /**
+     * Prepares {@code held} for a cursor on {@code stmt}; every call is balanced by {@link #cursorClosed},
+     * which the stream from {@link #wrapCursor} makes once it is done.
+     */
+    private void beginCursor(HeldConnection held, PreparedStatement stmt) throws SQLException {
+        if (held.connection.getAutoCommit()) {
+            held.connection.setAutoCommit(false);
+            held.cursorTransaction = true;
+        }
+        stmt.setFetchSize(context.getConfig().getSearchFetchSize());
+        held.openCursors++;
+    }
+
+    private <T> Stream<T> wrapCursor(HeldConnection held, PreparedStatement stmt, ResultSet rs, RowMapper<T> mapper) {
+        Stream<T> stream = ResultSetStream.of(stmt, rs, mapper, () -> cursorClosed(held));
+        openCursors.add(stream);
+        return stream;
+    }
+
+    private void cursorClosed(HeldConnection held) {
+        if (--held.openCursors > 0 || !held.cursorTransaction) {
+            return;
+        }
+        held.cursorTransaction = false;
+        try {
+            held.connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            logger.error("Error restoring autocommit after streaming", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseConnection();
     }
 
     @Override
     public UserModel addUser(RealmModel realmModel, String username) {
-        logger.info("Attempting to add user with username: {}", username);
+        logger.debug("Adding user {}", username);
+        activeOperation = Operation.ADD_USER;
+        long start = System.nanoTime();
         String query = "INSERT INTO users (username) VALUES (?)";
-        try (PreparedStatement stmt = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+        int shard = Sharding.shardFor(username, context.getShards().size());
+        try (PreparedStatement stmt = getConnection(shard).prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
             stmt.setString(1, username);
+            long dbStart = System.nanoTime();
             stmt.executeUpdate();
 
             try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                context.getMetrics().recordPhase(Operation.ADD_USER, Phase.DB, dbStart);
                 if (generatedKeys.next()) {
-                    long id = generatedKeys.getLong(1);
-                    logger.info("User successfully added with ID: {} and username: {}", id, username);
+                    long id = Sharding.globalId(shard, generatedKeys.getLong(1));
+                    logger.debug("Added user {} with id {}", username, Sharding.externalId(id));
 
                     User user = new User();
                     user.setId(id);
                     user.setUsername(username);
+                    context.getCache().invalidateKeys(username, null);
+                    context.getUserKeys().add(username, null);
 
-                    return new UserAdapter(keycloakSession, realmModel, componentModel, user, connection);
+                    context.getMetrics().record(Operation.ADD_USER, Outcome.SUCCESS, start);
+                    context.getAudit().record(AuditEventType.USER_ADDED, username, Outcome.SUCCESS);
+                    return newAdapter(realmModel, user);
                 } else {
                     logger.error("Failed to retrieve generated ID for user: {}", username);
                 }
@@ -89,100 +267,182 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
         } catch (SQLException e) {
             logger.error("Error adding user", e);
         }
+        context.getMetrics().record(Operation.ADD_USER, Outcome.ERROR, start);
+        context.getAudit().record(AuditEventType.USER_ADDED, username, Outcome.ERROR);
         return null;
     }
 
     @Override
     public UserModel getUserById(RealmModel realmModel, String id) {
-        logger.info("Attempting to find user by ID: {}", id);
-        long persistenceId;
-        try {
-            persistenceId = Long.parseLong(StorageId.externalId(id));
-        } catch (NumberFormatException e) {
-            logger.error("Invalid ID format: {}", id, e);
+        activeOperation = Operation.GET_BY_ID;
+        long start = System.nanoTime();
+        Long persistenceId = persistenceId(id);
+        if (persistenceId == null) {
+            context.getMetrics().record(Operation.GET_BY_ID, Outcome.NOT_FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, id, Outcome.NOT_FOUND);
             return null;
         }
 
-        String query = "SELECT * FROM users WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setLong(1, persistenceId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                logger.info("User found with ID: {}", id);
-                User user = mapRowToUser(rs);
-                return new UserAdapter(keycloakSession, realmModel, componentModel, user, connection);
-            } else {
-                logger.warn("No user found with ID: {}", id);
-            }
-        } catch (SQLException e) {
-            logger.error("Error finding user by ID", e);
+        User user = context.getCache().getById(persistenceId);
+        if (user == null) {
+            user = loadUser(Operation.GET_BY_ID, UserLoader.Kind.ID, persistenceId, id, start);
+        } else {
+            context.getMetrics().record(Operation.GET_BY_ID, Outcome.FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, id, Outcome.FOUND);
         }
-        return null;
+        return user == null ? null : newAdapter(realmModel, user);
     }
 
     @Override
     public UserModel getUserByUsername(RealmModel realmModel, String username) {
-        logger.info("Attempting to find user by username: {}", username);
-        String query = "SELECT * FROM users WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                logger.info("User found with username: {}", username);
-                User user = mapRowToUser(rs);
-                return new UserAdapter(keycloakSession, realmModel, componentModel, user, connection);
-            }else {
-                logger.warn("No user found with username: {}", username);
-            }
-        } catch (SQLException e) {
-            logger.error("Error finding user by username", e);
+        activeOperation = Operation.GET_BY_USERNAME;
+        long start = System.nanoTime();
+        User user = context.getCache().getByUsername(username);
+        if (user == null && !context.getUserKeys().mightContainUsername(username)) {
+            context.getMetrics().record(Operation.GET_BY_USERNAME, Outcome.NOT_FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, username, Outcome.NOT_FOUND);
+            return null;
         }
-        return null;
+        if (user == null) {
+            user = loadUser(Operation.GET_BY_USERNAME, UserLoader.Kind.USERNAME, username, username, start);
+        } else {
+            context.getMetrics().record(Operation.GET_BY_USERNAME, Outcome.FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, username, Outcome.FOUND);
+        }
+        return user == null ? null : newAdapter(realmModel, user);
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realmModel, String email) {
-        logger.info("Attempting to find user by email: {}", email);
-        String query = "SELECT * FROM users WHERE email = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, email);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                logger.info("User found with email: {}", email);
-                User user = mapRowToUser(rs);
-                return new UserAdapter(keycloakSession, realmModel, componentModel, user, connection);
-            }else {
-                logger.warn("No user found with email: {}", email);
+        activeOperation = Operation.GET_BY_EMAIL;
+        long start = System.nanoTime();
+        User user = context.getCache().getByEmail(email);
+        if (user == null && !context.getUserKeys().mightContainEmail(email)) {
+            context.getMetrics().record(Operation.GET_BY_EMAIL, Outcome.NOT_FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, email, Outcome.NOT_FOUND);
+            return null;
+        }
+        if (user == null) {
+            user = loadUser(Operation.GET_BY_EMAIL, UserLoader.Kind.EMAIL, email, email, start);
+        } else {
+            context.getMetrics().record(Operation.GET_BY_EMAIL, Outcome.FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, email, Outcome.FOUND);
+        }
+        return user == null ? null : newAdapter(realmModel, user);
+    }
+
+    /**
+     * Reads one user, caches it and records the lookup's outcome. A user read from a replica is not
+     * cached: another session may just have changed it on the primary, and the eviction of that
+     * change may already have run.
+     *
+     * @param subject the id, username or email as the caller gave it, for the audit trail
+     */
+    private User loadUser(Operation operation, UserLoader.Kind kind, Object key, String subject, long start) {
+        try {
+            long dbStart = System.nanoTime();
+            User user = findUser(kind, key);
+            context.getMetrics().recordPhase(operation, Phase.DB, dbStart);
+            if (user == null) {
+                logger.debug("No user found for {}: {}", operation, subject);
+                context.getMetrics().record(operation, Outcome.NOT_FOUND, start);
+                context.getAudit().record(AuditEventType.LOOKUP, subject, Outcome.NOT_FOUND);
+                return null;
+            }
+            if (!user.isFromReplica()) {
+                context.getCache().put(user);
             }
+            context.getMetrics().record(operation, Outcome.FOUND, start);
+            context.getAudit().record(AuditEventType.LOOKUP, subject, Outcome.FOUND);
+            return user;
         } catch (SQLException e) {
-            logger.error("Error finding user by email", e);
+            logger.error("Error finding user for {}", operation, e);
+            context.getMetrics().record(operation, Outcome.ERROR, start);
+            context.getAudit().record(AuditEventType.LOOKUP, subject, Outcome.ERROR);
+            return null;
+        }
+    }
+
+    /**
+     * Routes a lookup to the shard holding the user: an id names its shard, a username hashes to it
+     * unless the shard directory lists the user elsewhere, and an email is found in the directory.
+     */
+    private User findUser(UserLoader.Kind kind, Object key) throws SQLException {
+        int shardCount = context.getShards().size();
+        if (kind == UserLoader.Kind.ID) {
+            return queryShard(Sharding.shardOf((Long) key), kind, key);
+        }
+        if (kind == UserLoader.Kind.USERNAME) {
+            int home = Sharding.shardFor((String) key, shardCount);
+            User user = queryShard(home, kind, key);
+            if (user != null) {
+                return user;
+            }
+            Integer listed = context.getDirectory().findUsername((String) key);
+            return listed == null || listed == home ? null : queryShard(listed, kind, key);
+        }
+        if (!context.isSharded()) {
+            return queryShard(0, kind, key);
+        }
+        Integer listed = context.getDirectory().findEmail((String) key);
+        return listed == null ? null : queryShard(listed, kind, key);
+    }
+
+    /**
+     * Sessions that have not written to the shard go through its shared {@link UserLoader}; others
+     * query on their own primary connection.
+     */
+    private User queryShard(int shard, UserLoader.Kind kind, Object key) throws SQLException {
+        if (!primaries.containsKey(shard) && context.getConfig().isLookupCoalescing()) {
+            return context.getLoader(shard).load(kind, key);
+        }
+        HeldConnection held = readConnection(shard);
+        try (PreparedStatement stmt = held.connection.prepareStatement(kind.query)) {
+            stmt.setObject(1, kind == UserLoader.Kind.ID ? Sharding.localId((Long) key) : key);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                User user = UserColumns.mapFull(rs, shard);
+                user.setFromReplica(held.pool != context.getShard(shard).getPool());
+                return user;
+            }
         }
-        return null;
     }
 
     @Override
     public boolean removeUser(RealmModel realmModel, UserModel userModel) {
-        logger.info("Attempting to remove user with ID: {}", userModel.getId());
+        logger.debug("Removing user {}", userModel.getId());
+        activeOperation = Operation.REMOVE_USER;
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
         String query = "DELETE FROM users WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            long persistenceId;
-            try {
-                persistenceId = Long.parseLong(StorageId.externalId(userModel.getId()));
-            } catch (NumberFormatException e) {
-                logger.error("Invalid ID format: {}", userModel.getId(), e);
-                return false;
-            }
-
-            stmt.setLong(1, persistenceId);
+        Long persistenceId = persistenceId(userModel.getId());
+        if (persistenceId == null) {
+            context.getMetrics().record(Operation.REMOVE_USER, Outcome.NOT_FOUND, start);
+            context.getAudit().record(AuditEventType.USER_REMOVED, userModel.getUsername(), Outcome.NOT_FOUND);
+            return false;
+        }
+        int shard = Sharding.shardOf(persistenceId);
+        try (PreparedStatement stmt = getConnection(shard).prepareStatement(query)) {
+            stmt.setLong(1, Sharding.localId(persistenceId));
+            long dbStart = System.nanoTime();
             int rowsAffected = stmt.executeUpdate();
+            context.getMetrics().recordPhase(Operation.REMOVE_USER, Phase.DB, dbStart);
+            context.getCache().invalidate(persistenceId);
             if (rowsAffected > 0) {
-                logger.info("User successfully removed with ID: {}", userModel.getId());
+                context.getDirectory().unregister(shard, userModel.getUsername(), userModel.getEmail());
+                outcome = Outcome.SUCCESS;
                 return true;
             } else {
-                logger.warn("No user found with ID: {} to remove", userModel.getId());
+                logger.debug("No user with id {} to remove", userModel.getId());
+                outcome = Outcome.NOT_FOUND;
             }
         } catch (SQLException e) {
             logger.error("Error removing user", e);
+        } finally {
+            context.getMetrics().record(Operation.REMOVE_USER, outcome, start);
+            context.getAudit().record(AuditEventType.USER_REMOVED, userModel.getUsername(), outcome);
         }
         return false;
     }
@@ -199,74 +459,415 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        logger.info("Validating credentials for user: {}", user.getUsername());
         if (!supportsCredentialType(credentialInput.getType())) {
             logger.warn("Unsupported credential type: {}", credentialInput.getType());
             return false;
         }
-        String query = "SELECT password FROM users WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, user.getUsername());
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                String storedPassword = rs.getString("password");
-                logger.info("storedPassword: ", storedPassword);
-                boolean isValid = passwordEncoder.matches(credentialInput.getChallengeResponse(), storedPassword);
-                logger.info("Credential validation result for user {}: {}", user.getUsername(), isValid);
-                return isValid;
-            } else {
-                logger.warn("No password found for user: {}", user.getUsername());
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            UserAdapter adapter = user instanceof UserAdapter ? (UserAdapter) user : (UserAdapter) getUserByUsername(realm, user.getUsername());
+            activeOperation = Operation.IS_VALID;
+            if (adapter == null || adapter.getPassword() == null) {
+                logger.debug("No password stored for user {}", user.getUsername());
+                outcome = Outcome.NOT_FOUND;
+                return false;
             }
-        } catch (SQLException e) {
-            logger.error("Error validating credentials for user", e);
+            PasswordHasher hasher = context.getPasswordHasher();
+            long bcryptStart = System.nanoTime();
+            boolean isValid;
+            try {
+                isValid = hasher.matches(credentialInput.getChallengeResponse(), adapter.getPassword());
+            } finally {
+                context.getMetrics().recordPhase(Operation.IS_VALID, Phase.BCRYPT, bcryptStart);
+            }
+            outcome = isValid ? Outcome.VALID : Outcome.INVALID;
+            logger.debug("Password of user {} valid: {}", user.getUsername(), isValid);
+            if (isValid && context.getConfig().isRehashOnLogin() && hasher.needsRehash(adapter.getPassword())) {
+                rehash(adapter, credentialInput.getChallengeResponse());
+            }
+            return isValid;
+        } catch (PasswordHasherBusyException e) {
+            outcome = Outcome.REJECTED;
+            throw e;
+        } finally {
+            context.getMetrics().record(Operation.IS_VALID, outcome, start);
+            context.getAudit().record(outcome == Outcome.VALID ? AuditEventType.LOGIN_SUCCESS : AuditEventType.LOGIN_FAILURE,
+                    user.getUsername(), outcome);
         }
-        return false;
     }
 
+    private void rehash(UserAdapter user, String rawPassword) {
+        try {
+            if (updatePassword(user, context.getPasswordHasher().encode(rawPassword), Operation.IS_VALID) == Outcome.SUCCESS) {
+                logger.debug("Re-hashed password of user {} with bcrypt cost {}", user.getUsername(), context.getPasswordHasher().getCost());
+            }
+        } catch (PasswordHasherBusyException e) {
+            logger.debug("Skipping re-hash of user {}: {}", user.getUsername(), e.getMessage());
+        }
+    }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realmModel, Map<String, String> map, Integer firstResult, Integer maxResults) {
-        String searchParam = map.getOrDefault("email", map.getOrDefault("username", ""));
-        logger.info("Searching for users with parameter: {}", searchParam);
-
-        List<User> users = new ArrayList<>();
-        String query = "SELECT * FROM users WHERE email LIKE ? OR username LIKE ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, "%" + searchParam + "%");
-            stmt.setString(2, "%" + searchParam + "%");
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                users.add(mapRowToUser(rs));
+        activeOperation = Operation.SEARCH;
+        long start = System.nanoTime();
+        UserSearchQuery search = UserSearchQuery.from(map, context.getConfig().getSearchMode());
+        logger.debug("Searching for users with criteria: {}", search.getKey());
+
+        long dbStart = System.nanoTime();
+        Stream<User> users = streamPage(search.getWhere(), search.getParams(), "search:" + search.getKey(), firstResult, maxResults);
+        context.getMetrics().recordPhase(Operation.SEARCH, Phase.DB, dbStart);
+        Outcome outcome = users == null ? Outcome.ERROR : Outcome.SUCCESS;
+        context.getMetrics().record(Operation.SEARCH, outcome, start);
+        context.getAudit().record(AuditEventType.SEARCH, search.getKey(), outcome);
+        return toAdapters(realmModel, users);
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm) {
+        return getUsersCount(realm, false);
+    }
+
+    /**
+     * This store has no service accounts, so the flag changes nothing.
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
+        return estimatedTotal();
+    }
+
+    private int estimatedTotal() {
+        long start = System.nanoTime();
+        int total = context.getCounts().getTotal();
+        context.getMetrics().record(Operation.COUNT, Outcome.SUCCESS, start);
+        return total;
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Set<String> groupIds) {
+        return getUsersCount(realm, Map.of(), groupIds);
+    }
+
+    /**
+     * Overridden because the interface's default streams and counts every matching user.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public int getUsersCount(RealmModel realm, String search) {
+        return getUsersCount(realm, searchParams(search));
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public int getUsersCount(RealmModel realm, String search, Set<String> groupIds) {
+        return getUsersCount(realm, searchParams(search), groupIds);
+    }
+
+    private static Map<String, String> searchParams(String search) {
+        return search == null ? Map.of() : Map.of(UserModel.SEARCH, search);
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params) {
+        return countUsers(UserSearchQuery.from(params, context.getConfig().getSearchMode()), null);
+    }
+
+    /**
+     * @param groupIds the groups an admin with fine-grained permissions may see users of
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
+        if (groupIds == null || groupIds.isEmpty()) {
+            return 0;
+        }
+        return countUsers(UserSearchQuery.from(params, context.getConfig().getSearchMode()), groupIds);
+    }
+
+    private int countUsers(UserSearchQuery search, Set<String> groupIds) {
+        if (groupIds == null && search.getKey().isEmpty()) {
+            return estimatedTotal();
+        }
+        activeOperation = Operation.COUNT;
+        long start = System.nanoTime();
+        String where = search.getWhere();
+        Object[] params = search.getParams();
+        if (groupIds != null) {
+            where += " AND EXISTS (SELECT 1 FROM user_groups g WHERE g.user_id = users.id AND g.group_id = ANY(?))";
+            params = Arrays.copyOf(params, params.length + 1);
+            params[params.length - 1] = groupIds.toArray(String[]::new);
+        }
+        Outcome outcome = Outcome.ERROR;
+        try {
+            List<Connection> connections = new ArrayList<>();
+            for (int shard = 0; shard < context.getShards().size(); shard++) {
+                connections.add(getReadConnection(shard));
+            }
+            String filter = where;
+            Object[] filterParams = params;
+            long dbStart = System.nanoTime();
+            long count = 0;
+            for (int shardCount : scatter(shard -> context.getCounts().count(connections.get(shard), filter, filterParams))) {
+                count += shardCount;
+            }
+            context.getMetrics().recordPhase(Operation.COUNT, Phase.DB, dbStart);
+            outcome = Outcome.SUCCESS;
+            return UserCounts.clamp(count);
+        } catch (SQLException e) {
+            logger.error("Error counting users", e);
+            return 0;
+        } finally {
+            context.getMetrics().record(Operation.COUNT, outcome, start);
+        }
+    }
+
+    /**
+     * Reads one page of users matching {@code where}, ordered by id. Pages that follow a fully
+     * read page continue from its last id (keyset pagination); other offsets fall back to
+     * {@code OFFSET}. Rows are streamed, never collected, and carry only the identity columns.
+     *
+     * @return the rows, or {@code null} when the query failed
+     */
+    private Stream<User> streamPage(String where, Object[] params, String queryKey, Integer firstResult, Integer maxResults) {
+        int first = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        int max = maxResults == null || maxResults < 0 ? -1 : maxResults;
+        if (max == 0) {
+            return Stream.empty();
+        }
+        if (context.isSharded()) {
+            return streamMergedPage(where, params, queryKey, first, max);
+        }
+        Long anchor = context.getPageAnchors().find(queryKey, first);
+
+        StringBuilder query = new StringBuilder("SELECT " + UserColumns.IDENTITY + " FROM users WHERE (").append(where).append(')');
+        if (anchor != null) {
+            query.append(" AND id > ?");
+        }
+        query.append(" ORDER BY id");
+        if (max > 0) {
+            query.append(" LIMIT ?");
+        }
+        if (anchor == null && first > 0) {
+            query.append(" OFFSET ?");
+        }
+
+        PreparedStatement stmt = null;
+        try {
+            HeldConnection held = readConnection(0);
+            stmt = held.connection.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            int index = 1;
+            for (Object param : params) {
+                stmt.setObject(index++, param);
+            }
+            if (anchor != null) {
+                stmt.setLong(index++, anchor);
+            }
+            if (max > 0) {
+                stmt.setInt(index++, max);
+            }
+            if (anchor == null && first > 0) {
+                stmt.setInt(index, first);
             }
-            logger.info("Found {} users matching search parameter: {}", users.size(), searchParam);
+
+            int[] row = {0};
+            return openCursor(held, stmt, rs -> {
+                User user = UserColumns.mapIdentity(rs, 0);
+                if (max > 0 && ++row[0] == max) {
+                    context.getPageAnchors().record(queryKey, first + max, user.getId());
+                }
+                return user;
+            });
         } catch (SQLException e) {
             logger.error("Error searching for users", e);
+            closeQuietly(stmt);
+            return null;
         }
+    }
+
+    /**
+     * Reads one page of users matching {@code where} from every shard, ordered by lowercased
+     * username and then shard. The shards are queried in parallel, each for the rows that can still
+     * make the page in that order, and their cursors merged. A page that follows a fully read page
+     * continues after its last row's {@link SortKey} on every shard; other offsets have each shard
+     * return up to {@code first + max} rows, of which the merge skips the first {@code first}.
+     *
+     * @return the rows, or {@code null} when a query failed
+     */
+    private Stream<User> streamMergedPage(String where, Object[] params, String queryKey, int first, int max) {
+        SortKey anchor = context.getShardedPageAnchors().find(queryKey, first);
+        int shardCount = context.getShards().size();
+        List<HeldConnection> held = new ArrayList<>();
+        List<PreparedStatement> statements = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                // ~<~ compares bytes whatever the database's collation, as SortKey does; the prefix
+                // search index on lower(username) text_pattern_ops returns rows in that order
+                StringBuilder query = new StringBuilder("SELECT " + UserColumns.IDENTITY + ", lower(username) FROM users WHERE (")
+                        .append(where).append(')');
+                if (anchor != null) {
+                    // The anchor's username may also exist on a later shard, which sorts after it
+                    query.append(shard > anchor.shard() ? " AND lower(username) ~>=~ ?" : " AND lower(username) ~>~ ?");
+                }
+                query.append(" ORDER BY lower(username) USING ~<~");
+                if (max > 0) {
+                    query.append(" LIMIT ?");
+                }
+                HeldConnection connection = readConnection(shard);
+                PreparedStatement stmt = connection.connection.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                statements.add(stmt);
+                int index = 1;
+                for (Object param : params) {
+                    stmt.setObject(index++, param);
+                }
+                if (anchor != null) {
+                    stmt.setString(index++, anchor.key());
+                }
+                if (max > 0) {
+                    stmt.setInt(index, anchor == null ? (int) Math.min(Integer.MAX_VALUE, (long) first + max) : max);
+                }
+                beginCursor(connection, stmt);
+                held.add(connection);
+            }
+            List<ResultSet> results = scatter(shard -> statements.get(shard).executeQuery());
 
-        return users.stream().map(user -> new UserAdapter(keycloakSession, realmModel, componentModel, user, connection));
+            List<Stream<Ranked>> cursors = new ArrayList<>();
+            for (int shard = 0; shard < shardCount; shard++) {
+                int index = shard;
+                cursors.add(wrapCursor(held.get(shard), statements.get(shard), results.get(shard),
+                        rs -> new Ranked(new SortKey(rs.getString(UserColumns.IDENTITY_COUNT + 1), index), UserColumns.mapIdentity(rs, index))));
+            }
+            Stream<Ranked> page = SortedMerge.of(cursors, Comparator.comparing(Ranked::key));
+            if (anchor == null && first > 0) {
+                page = page.skip(first);
+            }
+            if (max > 0) {
+                page = page.limit(max);
+            }
+            int[] row = {0};
+            return page.map(ranked -> {
+                if (max > 0 && ++row[0] == max) {
+                    context.getShardedPageAnchors().record(queryKey, first + max, ranked.key());
+                }
+                return ranked.user();
+            });
+        } catch (SQLException e) {
+            logger.error("Error searching for users", e);
+            statements.forEach(CustomUserStorageProvider::closeQuietly);
+            held.forEach(this::cursorClosed);
+            return null;
+        }
     }
 
-    private User mapRowToUser(ResultSet rs) throws SQLException {
-        logger.info("Mapping ResultSet to User object");
-        User user = new User();
-        user.setId(rs.getLong("id"));
-        user.setUsername(rs.getString("username"));
-        user.setEmail(rs.getString("email"));
-        user.setFirstName(rs.getString("firstname"));
-        user.setLastName(rs.getString("lastname"));
-        user.setPassword(rs.getString("password"));
-        logger.info("Mapped User: {}", user.getUsername());
-        return user;
+    /**
+     * Runs {@code task} for every shard, in parallel when there are several, and returns the
+     * results in shard order once all have finished. Connections must be borrowed beforehand, on
+     * the session's thread.
+     */
+    private <T> List<T> scatter(ShardTask<T> task) throws SQLException {
+        int shardCount = context.getShards().size();
+        if (shardCount == 1) {
+            return List.of(task.run(0));
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            int index = shard;
+            futures.add(context.getScatterExecutor().submit(() -> task.run(index)));
+        }
+        List<T> results = new ArrayList<>();
+        SQLException failure = null;
+        // Waits for every task, so that none still uses a connection when this returns
+        for (int shard = 0; shard < shardCount; shard++) {
+            try {
+                results.add(futures.get(shard).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure != null ? failure : new SQLException("Interrupted while querying shard " + shard, e);
+            } catch (ExecutionException e) {
+                SQLException cause = e.getCause() instanceof SQLException sqlException
+                        ? sqlException : new SQLException("Query on shard " + shard + " failed", e.getCause());
+                failure = failure != null ? failure : cause;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.debug("Failed to close statement", e);
+            }
+        }
+    }
+
+    private Stream<UserModel> toAdapters(RealmModel realmModel, Stream<User> users) {
+        return users == null ? Stream.empty() : ReadAhead.of(users.map(user -> newAdapter(realmModel, user)), LISTING_READ_AHEAD);
+    }
+
+    private UserAdapter newAdapter(RealmModel realmModel, User user) {
+        int shard = Sharding.shardOf(user.getId());
+        return new UserAdapter(keycloakSession, realmModel, componentModel, user, () -> getConnection(shard), context.getCache(),
+                context.getUserKeys(), memberships, profiles, context.getDirectory());
+    }
+
+    /**
+     * @return the provider's id of the user Keycloak knows by {@code id}, or {@code null} if it names none of this provider's shards
+     */
+    private Long persistenceId(String id) {
+        long persistenceId;
+        try {
+            persistenceId = Sharding.parseExternalId(StorageId.externalId(id));
+        } catch (NumberFormatException e) {
+            logger.error("Invalid ID format: {}", id, e);
+            return null;
+        }
+        if (Sharding.shardOf(persistenceId) >= context.getShards().size()) {
+            logger.debug("No shard {} for user {}", Sharding.shardOf(persistenceId), id);
+            return null;
+        }
+        return persistenceId;
     }
 
     @Override
     public Stream<UserModel> getGroupMembersStream(RealmModel realmModel, GroupModel groupModel, Integer firstResult, Integer maxResults) {
-        return Stream.empty();
+        String where = "EXISTS (SELECT 1 FROM user_groups g WHERE g.user_id = users.id AND g.group_id = ?)";
+        return toAdapters(realmModel, streamPage(where, new Object[]{groupModel.getId()}, "group:" + groupModel.getId(), firstResult, maxResults));
     }
 
+    @Override
+    public void preRemove(RealmModel realm, GroupModel group) {
+        memberships.removeGroup(group.getId());
+    }
+
+    /**
+     * Column attributes match case-insensitively on their {@code lower()} index; any other attribute
+     * is a containment query on the jsonb document, served by {@code users_attributes_idx}.
+     */
     @Override
     public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realmModel, String attribute, String value) {
-        return Stream.empty();
+        if (attribute == null || value == null) {
+            return Stream.empty();
+        }
+        String column = ATTRIBUTE_COLUMNS.get(attribute);
+        String where;
+        Object param;
+        if (column != null) {
+            where = "lower(" + column + ") = ?";
+            param = value.toLowerCase(Locale.ROOT);
+        } else {
+            where = "attributes @> CAST(? AS jsonb)";
+            try {
+                param = JsonSerialization.writeValueAsString(Map.of(attribute, List.of(value)));
+            } catch (IOException e) {
+                logger.error("Failed to build attribute query for {}", attribute, e);
+                return Stream.empty();
+            }
+        }
+        return toAdapters(realmModel, streamPage(where, new Object[]{param}, "attribute:" + attribute + "=" + value, null, null));
     }
 
     @Override
@@ -282,24 +883,25 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
     @Override
     public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
         if (input instanceof UserCredentialModel && input.getType().equals(CredentialModel.PASSWORD)) {
-            String newPassword = ((UserCredentialModel) input).getValue();
-            String hashedPassword = passwordEncoder.encode(newPassword);
-
-            String query = "UPDATE users SET password = ? WHERE username = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(query)) {
-                stmt.setString(1, hashedPassword);
-                stmt.setString(2, user.getUsername());
-                int rowsUpdated = stmt.executeUpdate();
-                if (rowsUpdated > 0) {
-                    logger.info("Password updated successfully for user: {}", user.getUsername());
-                    return true;
-                } else {
-                    logger.warn("Failed to update password for user: {}", user.getUsername());
-                    return false;
+            activeOperation = Operation.UPDATE_CREDENTIAL;
+            long start = System.nanoTime();
+            Outcome outcome = Outcome.ERROR;
+            try {
+                String newPassword = ((UserCredentialModel) input).getValue();
+                long bcryptStart = System.nanoTime();
+                String hashedPassword;
+                try {
+                    hashedPassword = context.getPasswordHasher().encode(newPassword);
+                } finally {
+                    context.getMetrics().recordPhase(Operation.UPDATE_CREDENTIAL, Phase.BCRYPT, bcryptStart);
                 }
-            } catch (SQLException e) {
-                logger.error("Error updating password for user", e);
-                return false;
+                outcome = updatePassword(user, hashedPassword, Operation.UPDATE_CREDENTIAL);
+                return outcome == Outcome.SUCCESS;
+            } catch (PasswordHasherBusyException e) {
+                outcome = Outcome.REJECTED;
+                throw e;
+            } finally {
+                context.getMetrics().record(Operation.UPDATE_CREDENTIAL, outcome, start);
             }
         } else {
             logger.warn("Unsupported credential type for update: {}", input.getType());
@@ -307,6 +909,39 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
         }
     }
 
+    /**
+     * @param operation the operation whose database time the update is recorded under
+     */
+    private Outcome updatePassword(UserModel user, String hashedPassword, Operation operation) {
+        // By id, which names the user's shard; its username may hash elsewhere after a rename
+        String query = "UPDATE users SET password = ? WHERE id = ?";
+        Long persistenceId = persistenceId(user.getId());
+        if (persistenceId == null) {
+            context.getAudit().record(AuditEventType.PASSWORD_UPDATED, user.getUsername(), Outcome.NOT_FOUND);
+            return Outcome.NOT_FOUND;
+        }
+        Outcome outcome = Outcome.ERROR;
+        try (PreparedStatement stmt = getConnection(Sharding.shardOf(persistenceId)).prepareStatement(query)) {
+            stmt.setString(1, hashedPassword);
+            stmt.setLong(2, Sharding.localId(persistenceId));
+            long dbStart = System.nanoTime();
+            int rowsUpdated = stmt.executeUpdate();
+            context.getMetrics().recordPhase(operation, Phase.DB, dbStart);
+            context.getCache().invalidate(persistenceId);
+            if (rowsUpdated > 0) {
+                logger.debug("Updated password of user {}", user.getUsername());
+                outcome = Outcome.SUCCESS;
+            } else {
+                logger.debug("No user {} to update the password of", user.getUsername());
+                outcome = Outcome.NOT_FOUND;
+            }
+        } catch (SQLException e) {
+            logger.error("Error updating password for user", e);
+        }
+        context.getAudit().record(AuditEventType.PASSWORD_UPDATED, user.getUsername(), outcome);
+        return outcome;
+    }
+
     @Override
     public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
         if (CredentialModel.PASSWORD.equals(credentialType)) {
@@ -320,4 +955,31 @@ public class CustomUserStorageProvider implements UserStorageProvider, UserRegis
         return Stream.empty();
     }
 
+    @FunctionalInterface
+    private interface ShardTask<T> {
+
+        T run(int shard) throws SQLException;
+    }
+
+    /**
+     * A row of a search merged across shards, with the key it is merged by.
+     */
+    private record Ranked(SortKey key, User user) {
+    }
+
+    /**
+     * A pooled connection held for the rest of the Keycloak transaction, with its cursor bookkeeping.
+     */
+    private static final class HeldConnection {
+
+        final ConnectionPool pool;
+        final Connection connection;
+        int openCursors;
+        boolean cursorTransaction;
+
+        HeldConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+        }
+    }
 }
@@ -1,25 +1,48 @@
 package com.cuong.storage.provider;
 
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
-import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider> {
+public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider>, ImportSynchronization {
+
+    public static final String PROVIDER_ID = "custom-user-provider";
 
-    private Connection connection;
     private static final Logger logger = LoggerFactory.getLogger(CustomUserStorageProviderFactory.class);
-    private static final String URL = "jdbc:postgresql://host.docker.internal:6543/custom-provider";
-    private static final String USER = "postgres";
-    private static final String PASSWORD = "12345";
+
+    /** How long a session waits for a component's context before failing, e.g. while an index builds. */
+    private static final long INIT_WAIT_MS = 10_000;
+
+    /**
+     * Contexts are built by a thread of their own, never inside a map operation, so that building
+     * one, which includes migrating the schema, holds up only the sessions that need it.
+     */
+    private final Map<String, CompletableFuture<StorageContext>> contexts = new ConcurrentHashMap<>();
+    private volatile KeycloakSessionFactory sessionFactory;
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+    }
 
     @Override
     public CustomUserStorageProvider create(KeycloakSession keycloakSession, ComponentModel componentModel) {
@@ -27,55 +50,124 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
             CustomUserStorageProvider customUserProvider = new CustomUserStorageProvider();
             customUserProvider.setModel(componentModel);
             customUserProvider.setSession(keycloakSession);
-            customUserProvider.setConnection(getConnection());
+            customUserProvider.setContext(getContext(componentModel));
             return customUserProvider;
+        } catch (ModelException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("Error creating CustomerStorageProvider", e);
             throw new RuntimeException("Failed to create CustomerStorageProvider", e);
         }
     }
 
-    private synchronized Connection getConnection() {
-        if (connection == null || !isConnectionValid()) {
-            int attempts = 0;
-            SQLException lastException = null;
-            while (attempts < 3) {
-                try {
-                    connection = DriverManager.getConnection(URL, USER, PASSWORD);
-                    logger.info("Successfully connected to the PostgreSQL database.");
-                    return connection;
-                } catch (SQLException e) {
-                    attempts++;
-                    lastException = e;
-                    logger.error("Failed to connect to the database. Attempt: {}", attempts);
-                }
+    /**
+     * @throws ModelException if the context is still initialising after {@link #INIT_WAIT_MS}, or
+     *                        failed to; the next call retries a failed initialisation
+     */
+    public StorageContext getContext(ComponentModel componentModel) {
+        return await(componentModel, INIT_WAIT_MS);
+    }
+
+    /**
+     * Like {@link #getContext}, but waits for as long as initialising takes.
+     */
+    private StorageContext awaitContext(ComponentModel componentModel) {
+        return await(componentModel, Long.MAX_VALUE);
+    }
+
+    private StorageContext await(ComponentModel componentModel, long waitMs) {
+        String id = componentModel.getId();
+        CompletableFuture<StorageContext> future = contexts.get(id);
+        if (future == null) {
+            CompletableFuture<StorageContext> created = new CompletableFuture<>();
+            future = contexts.putIfAbsent(id, created);
+            if (future == null) {
+                future = created;
+                Thread builder = new Thread(() -> build(componentModel, created), "user-storage-init-" + id);
+                builder.setDaemon(true);
+                builder.start();
             }
-            throw new RuntimeException("Unable to connect to the database after 3 attempts", lastException);
         }
-        return connection;
+        try {
+            return future.get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ModelException("User storage " + id + " is still initialising");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while waiting for user storage " + id + " to initialise", e);
+        } catch (ExecutionException e) {
+            throw new ModelException("User storage " + id + " failed to initialise", e.getCause());
+        }
     }
 
-    private boolean isConnectionValid() {
+    private void build(ComponentModel componentModel, CompletableFuture<StorageContext> future) {
+        String id = componentModel.getId();
+        logger.info("Initializing storage context for component {}", id);
+        StorageContext context = null;
         try {
-            return connection != null && !connection.isClosed() && connection.isValid(2);
-        } catch (SQLException e) {
-            return false;
+            // Migrates every shard's schema before the first lookup, which relies on the lower() indexes
+            context = new StorageContext(id, StorageConfig.from(componentModel));
+            if (sessionFactory != null) {
+                // A component's parent is its realm
+                context.startChangeFeed(sessionFactory, componentModel.getParentId());
+            }
+        } catch (RuntimeException | Error e) {
+            logger.error("Failed to initialize storage context for component {}", id, e);
+            if (context != null) {
+                context.close();
+            }
+            contexts.remove(id, future);
+            future.completeExceptionally(e);
+            return;
         }
+        future.complete(context);
+    }
+
+    private void closeContext(String componentId) {
+        CompletableFuture<StorageContext> future = contexts.remove(componentId);
+        if (future != null) {
+            // Closes a context still being built once it is
+            future.thenAccept(StorageContext::close);
+        }
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return StorageConfig.configProperties();
+    }
+
+    @Override
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
+        StorageConfig.from(config).validate();
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        closeContext(oldModel.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeContext(model.getId());
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return new UserImporter(awaitContext(model), model).importAll(sessionFactory, realmId);
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return new UserImporter(awaitContext(model), model).importChangedSince(sessionFactory, realmId, lastSync);
     }
 
     @Override
     public String getId() {
-        return "custom-user-provider";
+        return PROVIDER_ID;
     }
 
     @Override
     public void close() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            logger.error("Failed to close database connection", e);
-        }
+        contexts.keySet().forEach(this::closeContext);
     }
-}
\ No newline at end of file
+}
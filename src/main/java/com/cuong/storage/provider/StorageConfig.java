@@ -0,0 +1,722 @@
+package com.cuong.storage.provider;
+
+import com.cuong.storage.audit.AuditEventType;
+import com.cuong.storage.audit.AuditMode;
+import com.cuong.storage.search.SearchMode;
+import com.cuong.storage.shard.Sharding;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class StorageConfig {
+
+    public static final String JDBC_URL = "jdbcUrl";
+    public static final String DB_USERNAME = "dbUsername";
+    public static final String DB_PASSWORD = "dbPassword";
+    public static final String POOL_MIN_SIZE = "poolMinSize";
+    public static final String POOL_MAX_SIZE = "poolMaxSize";
+    public static final String POOL_ACQUIRE_TIMEOUT_MS = "poolAcquireTimeoutMs";
+    public static final String POOL_VALIDATION_TIMEOUT_SECONDS = "poolValidationTimeoutSeconds";
+    public static final String POOL_LEAK_DETECTION_MS = "poolLeakDetectionMs";
+    public static final String CACHE_MAX_ENTRIES = "cacheMaxEntries";
+    public static final String CACHE_TTL_SECONDS = "cacheTtlSeconds";
+    public static final String HASHER_THREADS = "hasherThreads";
+    public static final String HASHER_QUEUE_DEPTH = "hasherQueueDepth";
+    public static final String HASHER_TIMEOUT_MS = "hasherTimeoutMs";
+    public static final String HASH_TARGET_MS = "hashTargetMs";
+    public static final String HASH_COST = "hashCost";
+    public static final String REHASH_ON_LOGIN = "rehashOnLogin";
+    public static final String SEARCH_FETCH_SIZE = "searchFetchSize";
+    public static final String SEARCH_MODE = "searchMode";
+    public static final String MANAGE_SCHEMA = "manageSchema";
+    public static final String SYNC_BATCH_SIZE = "syncBatchSize";
+    public static final String AUDIT_MODE = "auditMode";
+    public static final String AUDIT_SAMPLING = "auditSampling";
+    public static final String AUDIT_BUFFER_SIZE = "auditBufferSize";
+    public static final String AUDIT_FLUSH_INTERVAL_MS = "auditFlushIntervalMs";
+    public static final String REPLICA_URLS = "replicaUrls";
+    public static final String REPLICA_MAX_LAG_MS = "replicaMaxLagMs";
+    public static final String REPLICA_CHECK_INTERVAL_MS = "replicaCheckIntervalMs";
+    public static final String KEY_FILTER_ENABLED = "keyFilterEnabled";
+    public static final String KEY_FILTER_FALSE_POSITIVE_RATE = "keyFilterFalsePositiveRate";
+    public static final String KEY_FILTER_REFRESH_MS = "keyFilterRefreshMs";
+    public static final String KEY_FILTER_REBUILD_MINUTES = "keyFilterRebuildMinutes";
+    public static final String LOOKUP_COALESCING = "lookupCoalescing";
+    public static final String LOOKUP_BATCH_SIZE = "lookupBatchSize";
+    public static final String LOOKUP_BATCH_WAIT_MICROS = "lookupBatchWaitMicros";
+    public static final String CHANGE_FEED_ENABLED = "changeFeedEnabled";
+    public static final String COUNT_REFRESH_SECONDS = "countRefreshSeconds";
+    public static final String COUNT_EXACT_LIMIT = "countExactLimit";
+    public static final String SHARD_URLS = "shardUrls";
+    public static final String DIRECTORY_REFRESH_SECONDS = "directoryRefreshSeconds";
+
+    private static final String DEFAULT_JDBC_URL = "jdbc:postgresql://host.docker.internal:6543/custom-provider";
+    private static final String DEFAULT_DB_USERNAME = "postgres";
+    private static final String DEFAULT_DB_PASSWORD = "12345";
+    private static final int DEFAULT_POOL_MIN_SIZE = 2;
+    private static final int DEFAULT_POOL_MAX_SIZE = 20;
+    private static final long DEFAULT_POOL_ACQUIRE_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_POOL_VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long DEFAULT_POOL_LEAK_DETECTION_MS = 60000;
+    private static final long DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    private static final long DEFAULT_CACHE_TTL_SECONDS = 60;
+    private static final int DEFAULT_HASHER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_HASHER_QUEUE_DEPTH = 64;
+    private static final long DEFAULT_HASHER_TIMEOUT_MS = 5000;
+    private static final long DEFAULT_HASH_TARGET_MS = 50;
+    private static final int DEFAULT_HASH_COST = 0;
+    private static final boolean DEFAULT_REHASH_ON_LOGIN = true;
+    private static final int DEFAULT_SEARCH_FETCH_SIZE = 100;
+    private static final String DEFAULT_SEARCH_MODE = "SUBSTRING";
+    private static final boolean DEFAULT_MANAGE_SCHEMA = true;
+    private static final int DEFAULT_SYNC_BATCH_SIZE = 500;
+    private static final String DEFAULT_AUDIT_MODE = "LOG";
+    private static final int DEFAULT_AUDIT_BUFFER_SIZE = 8192;
+    private static final long DEFAULT_AUDIT_FLUSH_INTERVAL_MS = 1000;
+    private static final long DEFAULT_REPLICA_MAX_LAG_MS = 5000;
+    private static final long DEFAULT_REPLICA_CHECK_INTERVAL_MS = 5000;
+    private static final boolean DEFAULT_KEY_FILTER_ENABLED = true;
+    private static final double DEFAULT_KEY_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final long DEFAULT_KEY_FILTER_REFRESH_MS = 5000;
+    private static final long DEFAULT_KEY_FILTER_REBUILD_MINUTES = 60;
+    private static final boolean DEFAULT_LOOKUP_COALESCING = true;
+    private static final int DEFAULT_LOOKUP_BATCH_SIZE = 100;
+    private static final long DEFAULT_LOOKUP_BATCH_WAIT_MICROS = 500;
+    private static final boolean DEFAULT_CHANGE_FEED_ENABLED = true;
+    private static final long DEFAULT_COUNT_REFRESH_SECONDS = 60;
+    private static final int DEFAULT_COUNT_EXACT_LIMIT = 10000;
+    private static final long DEFAULT_DIRECTORY_REFRESH_SECONDS = 10;
+
+    private final String jdbcUrl;
+    private final String dbUsername;
+    private final String dbPassword;
+    private final int poolMinSize;
+    private final int poolMaxSize;
+    private final long poolAcquireTimeoutMs;
+    private final int poolValidationTimeoutSeconds;
+    private final long poolLeakDetectionMs;
+    private final long cacheMaxEntries;
+    private final long cacheTtlSeconds;
+    private final int hasherThreads;
+    private final int hasherQueueDepth;
+    private final long hasherTimeoutMs;
+    private final long hashTargetMs;
+    private final int hashCost;
+    private final boolean rehashOnLogin;
+    private final int searchFetchSize;
+    private final SearchMode searchMode;
+    private final boolean manageSchema;
+    private final int syncBatchSize;
+    private final AuditMode auditMode;
+    private final int auditBufferSize;
+    private final long auditFlushIntervalMs;
+    /** By shard index. */
+    private final Map<Integer, List<String>> replicaUrls;
+    private final long replicaMaxLagMs;
+    private final long replicaCheckIntervalMs;
+    private final boolean keyFilterEnabled;
+    private final double keyFilterFalsePositiveRate;
+    private final long keyFilterRefreshMs;
+    private final long keyFilterRebuildMinutes;
+    private final boolean lookupCoalescing;
+    private final int lookupBatchSize;
+    private final long lookupBatchWaitMicros;
+    private final boolean changeFeedEnabled;
+    private final long countRefreshSeconds;
+    private final int countExactLimit;
+    private final List<String> shardUrls;
+    private final long directoryRefreshSeconds;
+    private final Map<AuditEventType, Double> auditSampleRates;
+
+    private StorageConfig(ComponentModel model) {
+        this.jdbcUrl = model.get(JDBC_URL, DEFAULT_JDBC_URL);
+        this.dbUsername = model.get(DB_USERNAME, DEFAULT_DB_USERNAME);
+        this.dbPassword = model.get(DB_PASSWORD, DEFAULT_DB_PASSWORD);
+        this.poolMinSize = model.get(POOL_MIN_SIZE, DEFAULT_POOL_MIN_SIZE);
+        this.poolMaxSize = model.get(POOL_MAX_SIZE, DEFAULT_POOL_MAX_SIZE);
+        this.poolAcquireTimeoutMs = model.get(POOL_ACQUIRE_TIMEOUT_MS, DEFAULT_POOL_ACQUIRE_TIMEOUT_MS);
+        this.poolValidationTimeoutSeconds = model.get(POOL_VALIDATION_TIMEOUT_SECONDS, DEFAULT_POOL_VALIDATION_TIMEOUT_SECONDS);
+        this.poolLeakDetectionMs = model.get(POOL_LEAK_DETECTION_MS, DEFAULT_POOL_LEAK_DETECTION_MS);
+        this.cacheMaxEntries = model.get(CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES);
+        this.cacheTtlSeconds = model.get(CACHE_TTL_SECONDS, DEFAULT_CACHE_TTL_SECONDS);
+        this.hasherThreads = model.get(HASHER_THREADS, DEFAULT_HASHER_THREADS);
+        this.hasherQueueDepth = model.get(HASHER_QUEUE_DEPTH, DEFAULT_HASHER_QUEUE_DEPTH);
+        this.hasherTimeoutMs = model.get(HASHER_TIMEOUT_MS, DEFAULT_HASHER_TIMEOUT_MS);
+        this.hashTargetMs = model.get(HASH_TARGET_MS, DEFAULT_HASH_TARGET_MS);
+        this.hashCost = model.get(HASH_COST, DEFAULT_HASH_COST);
+        this.rehashOnLogin = model.get(REHASH_ON_LOGIN, DEFAULT_REHASH_ON_LOGIN);
+        this.searchFetchSize = model.get(SEARCH_FETCH_SIZE, DEFAULT_SEARCH_FETCH_SIZE);
+        this.searchMode = SearchMode.parse(model.get(SEARCH_MODE, DEFAULT_SEARCH_MODE));
+        this.manageSchema = model.get(MANAGE_SCHEMA, DEFAULT_MANAGE_SCHEMA);
+        this.syncBatchSize = model.get(SYNC_BATCH_SIZE, DEFAULT_SYNC_BATCH_SIZE);
+        this.auditMode = AuditMode.parse(model.get(AUDIT_MODE, DEFAULT_AUDIT_MODE));
+        this.auditSampleRates = AuditEventType.parseRates(model.getConfig().getOrDefault(AUDIT_SAMPLING, List.of()));
+        this.auditBufferSize = model.get(AUDIT_BUFFER_SIZE, DEFAULT_AUDIT_BUFFER_SIZE);
+        this.auditFlushIntervalMs = model.get(AUDIT_FLUSH_INTERVAL_MS, DEFAULT_AUDIT_FLUSH_INTERVAL_MS);
+        this.replicaUrls = parseReplicaUrls(model.getConfig().getOrDefault(REPLICA_URLS, List.of()));
+        this.replicaMaxLagMs = model.get(REPLICA_MAX_LAG_MS, DEFAULT_REPLICA_MAX_LAG_MS);
+        this.replicaCheckIntervalMs = model.get(REPLICA_CHECK_INTERVAL_MS, DEFAULT_REPLICA_CHECK_INTERVAL_MS);
+        this.keyFilterEnabled = model.get(KEY_FILTER_ENABLED, DEFAULT_KEY_FILTER_ENABLED);
+        this.keyFilterFalsePositiveRate = Double.parseDouble(model.get(KEY_FILTER_FALSE_POSITIVE_RATE,
+                String.valueOf(DEFAULT_KEY_FILTER_FALSE_POSITIVE_RATE)));
+        this.keyFilterRefreshMs = model.get(KEY_FILTER_REFRESH_MS, DEFAULT_KEY_FILTER_REFRESH_MS);
+        this.keyFilterRebuildMinutes = model.get(KEY_FILTER_REBUILD_MINUTES, DEFAULT_KEY_FILTER_REBUILD_MINUTES);
+        this.lookupCoalescing = model.get(LOOKUP_COALESCING, DEFAULT_LOOKUP_COALESCING);
+        this.lookupBatchSize = model.get(LOOKUP_BATCH_SIZE, DEFAULT_LOOKUP_BATCH_SIZE);
+        this.lookupBatchWaitMicros = model.get(LOOKUP_BATCH_WAIT_MICROS, DEFAULT_LOOKUP_BATCH_WAIT_MICROS);
+        this.changeFeedEnabled = model.get(CHANGE_FEED_ENABLED, DEFAULT_CHANGE_FEED_ENABLED);
+        this.countRefreshSeconds = model.get(COUNT_REFRESH_SECONDS, DEFAULT_COUNT_REFRESH_SECONDS);
+        this.countExactLimit = model.get(COUNT_EXACT_LIMIT, DEFAULT_COUNT_EXACT_LIMIT);
+        this.directoryRefreshSeconds = model.get(DIRECTORY_REFRESH_SECONDS, DEFAULT_DIRECTORY_REFRESH_SECONDS);
+        this.shardUrls = model.getConfig().getOrDefault(SHARD_URLS, List.of()).stream()
+                .filter(url -> url != null && !url.isBlank()).map(String::trim).toList();
+    }
+
+    /**
+     * Each entry is a URL of a shard 0 replica, or {@code <shard>=<url>} for another shard.
+     */
+    private static Map<Integer, List<String>> parseReplicaUrls(List<String> entries) {
+        Map<Integer, List<String>> urls = new TreeMap<>();
+        for (String entry : entries) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+            String url = entry.trim();
+            int shard = 0;
+            int separator = url.indexOf('=');
+            if (!url.startsWith("jdbc:") && separator > 0) {
+                shard = Integer.parseInt(url.substring(0, separator).trim());
+                url = url.substring(separator + 1).trim();
+            }
+            urls.computeIfAbsent(shard, s -> new ArrayList<>()).add(url);
+        }
+        return urls;
+    }
+
+    public static StorageConfig from(ComponentModel model) {
+        try {
+            return new StorageConfig(model);
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("Invalid value in provider configuration: " + e.getMessage());
+        }
+    }
+
+    public void validate() {
+        if (jdbcUrl == null || !jdbcUrl.startsWith("jdbc:postgresql:")) {
+            throw new ComponentValidationException("JDBC URL must be a jdbc:postgresql: URL");
+        }
+        if (poolMinSize < 0 || poolMaxSize < 1 || poolMinSize > poolMaxSize) {
+            throw new ComponentValidationException("Pool sizes must satisfy 0 <= min <= max and max >= 1");
+        }
+        if (poolAcquireTimeoutMs <= 0) {
+            throw new ComponentValidationException("Pool acquire timeout must be positive");
+        }
+        if (poolValidationTimeoutSeconds <= 0) {
+            throw new ComponentValidationException("Pool validation timeout must be positive");
+        }
+        if (poolLeakDetectionMs < 0) {
+            throw new ComponentValidationException("Pool leak detection threshold must not be negative");
+        }
+        if (cacheMaxEntries < 0 || cacheTtlSeconds < 0) {
+            throw new ComponentValidationException("Cache size and TTL must not be negative");
+        }
+        if (hasherThreads < 1 || hasherQueueDepth < 1 || hasherTimeoutMs <= 0) {
+            throw new ComponentValidationException("Password hashing threads, queue depth and timeout must be positive");
+        }
+        if (hashTargetMs <= 0) {
+            throw new ComponentValidationException("Password hash latency target must be positive");
+        }
+        if (hashCost != 0 && (hashCost < 4 || hashCost > 31)) {
+            throw new ComponentValidationException("Password hash cost must be between 4 and 31, or 0 to calibrate");
+        }
+        if (searchFetchSize < 1) {
+            throw new ComponentValidationException("Search fetch size must be positive");
+        }
+        if (syncBatchSize < 1) {
+            throw new ComponentValidationException("Sync batch size must be positive");
+        }
+        if (auditBufferSize < 2 || auditFlushIntervalMs <= 0) {
+            throw new ComponentValidationException("Audit buffer size must be at least 2 and flush interval positive");
+        }
+        for (Map.Entry<Integer, List<String>> shardReplicas : replicaUrls.entrySet()) {
+            if (shardReplicas.getKey() < 0 || shardReplicas.getKey() > shardUrls.size()) {
+                throw new ComponentValidationException("Replica URLs name shard " + shardReplicas.getKey() + ", which is not configured");
+            }
+            for (String replicaUrl : shardReplicas.getValue()) {
+                if (!replicaUrl.startsWith("jdbc:postgresql:")) {
+                    throw new ComponentValidationException("Replica URLs must be jdbc:postgresql: URLs");
+                }
+            }
+        }
+        if (replicaMaxLagMs < 0 || replicaCheckIntervalMs <= 0) {
+            throw new ComponentValidationException("Replica max lag must not be negative and check interval must be positive");
+        }
+        if (!(keyFilterFalsePositiveRate > 0 && keyFilterFalsePositiveRate < 1)) {
+            throw new ComponentValidationException("Negative lookup filter false-positive rate must be between 0 and 1");
+        }
+        if (keyFilterRefreshMs <= 0 || keyFilterRebuildMinutes <= 0) {
+            throw new ComponentValidationException("Negative lookup filter refresh and rebuild intervals must be positive");
+        }
+        if (lookupBatchSize < 1 || lookupBatchWaitMicros < 0) {
+            throw new ComponentValidationException("Lookup batch size must be positive and batch wait must not be negative");
+        }
+        if (countRefreshSeconds < 1 || countExactLimit < 0) {
+            throw new ComponentValidationException("User count refresh must be positive and the exact count limit must not be negative");
+        }
+        Set<String> shards = new HashSet<>();
+        shards.add(jdbcUrl);
+        for (String shardUrl : shardUrls) {
+            if (!shardUrl.startsWith("jdbc:postgresql:")) {
+                throw new ComponentValidationException("Shard URLs must be jdbc:postgresql: URLs");
+            }
+            if (!shards.add(shardUrl)) {
+                throw new ComponentValidationException("Shard URL " + shardUrl + " is listed twice or is the primary JDBC URL");
+            }
+        }
+        if (shardUrls.size() + 1 > Sharding.MAX_SHARDS) {
+            throw new ComponentValidationException("At most " + Sharding.MAX_SHARDS + " shards are supported");
+        }
+        if (directoryRefreshSeconds < 1) {
+            throw new ComponentValidationException("Shard directory refresh must be positive");
+        }
+    }
+
+    static List<ProviderConfigProperty> configProperties() {
+        return ProviderConfigurationBuilder.create()
+                .property()
+                .name(JDBC_URL)
+                .label("JDBC URL")
+                .helpText("PostgreSQL JDBC URL of the users database")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_JDBC_URL)
+                .add()
+                .property()
+                .name(DB_USERNAME)
+                .label("Database username")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_DB_USERNAME)
+                .add()
+                .property()
+                .name(DB_PASSWORD)
+                .label("Database password")
+                .type(ProviderConfigProperty.PASSWORD)
+                .secret(true)
+                .add()
+                .property()
+                .name(POOL_MIN_SIZE)
+                .label("Pool minimum size")
+                .helpText("Number of idle connections kept open")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_POOL_MIN_SIZE)
+                .add()
+                .property()
+                .name(POOL_MAX_SIZE)
+                .label("Pool maximum size")
+                .helpText("Upper bound on connections borrowed at the same time")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_POOL_MAX_SIZE)
+                .add()
+                .property()
+                .name(POOL_ACQUIRE_TIMEOUT_MS)
+                .label("Pool acquire timeout (ms)")
+                .helpText("How long a request waits for a free connection before failing")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_POOL_ACQUIRE_TIMEOUT_MS)
+                .add()
+                .property()
+                .name(POOL_VALIDATION_TIMEOUT_SECONDS)
+                .label("Pool validation timeout (s)")
+                .helpText("Timeout of the liveness check run on idle connections before they are handed out")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_POOL_VALIDATION_TIMEOUT_SECONDS)
+                .add()
+                .property()
+                .name(POOL_LEAK_DETECTION_MS)
+                .label("Pool leak detection threshold (ms)")
+                .helpText("Log a warning when a connection is held longer than this; 0 disables the check")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_POOL_LEAK_DETECTION_MS)
+                .add()
+                .property()
+                .name(CACHE_MAX_ENTRIES)
+                .label("Lookup cache size")
+                .helpText("Maximum number of users kept in the node-local lookup cache; 0 disables the cache")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_CACHE_MAX_ENTRIES)
+                .add()
+                .property()
+                .name(CACHE_TTL_SECONDS)
+                .label("Lookup cache TTL (s)")
+                .helpText("How long a cached user is served before it is read again from the database")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_CACHE_TTL_SECONDS)
+                .add()
+                .property()
+                .name(HASHER_THREADS)
+                .label("Password hashing threads")
+                .helpText("Size of the dedicated bcrypt worker pool")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_HASHER_THREADS)
+                .add()
+                .property()
+                .name(HASHER_QUEUE_DEPTH)
+                .label("Password hashing queue depth")
+                .helpText("Credential checks waiting beyond this are rejected immediately as overloaded")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_HASHER_QUEUE_DEPTH)
+                .add()
+                .property()
+                .name(HASHER_TIMEOUT_MS)
+                .label("Password hashing timeout (ms)")
+                .helpText("Maximum time a request waits for its credential check")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_HASHER_TIMEOUT_MS)
+                .add()
+                .property()
+                .name(HASH_TARGET_MS)
+                .label("Password hash latency target (ms)")
+                .helpText("The bcrypt cost is calibrated to the highest value whose hashing time stays within this target by the first node to start, and shared with the others through the database")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_HASH_TARGET_MS)
+                .add()
+                .property()
+                .name(HASH_COST)
+                .label("Password hash cost")
+                .helpText("Fixed bcrypt cost; 0 calibrates it from the latency target")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_HASH_COST)
+                .add()
+                .property()
+                .name(REHASH_ON_LOGIN)
+                .label("Rehash on login")
+                .helpText("Re-hash and store passwords whose bcrypt cost differs from the target after a successful login")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(DEFAULT_REHASH_ON_LOGIN)
+                .add()
+                .property()
+                .name(SEARCH_FETCH_SIZE)
+                .label("Search fetch size")
+                .helpText("Rows fetched per round-trip while streaming search results")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_SEARCH_FETCH_SIZE)
+                .add()
+                .property()
+                .name(SEARCH_MODE)
+                .label("Search mode")
+                .helpText("Default matching of search terms: EXACT, PREFIX or SUBSTRING. Quoted terms are always exact and * is a wildcard")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("EXACT", "PREFIX", "SUBSTRING")
+                .defaultValue(DEFAULT_SEARCH_MODE)
+                .add()
+                .property()
+                .name(MANAGE_SCHEMA)
+                .label("Manage schema")
+                .helpText("Apply pending schema migrations (indexes, columns, triggers) at startup; when off they are only reported")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(DEFAULT_MANAGE_SCHEMA)
+                .add()
+                .property()
+                .name(SYNC_BATCH_SIZE)
+                .label("Sync batch size")
+                .helpText("Users imported per Keycloak transaction during synchronization")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_SYNC_BATCH_SIZE)
+                .add()
+                .property()
+                .name(AUDIT_MODE)
+                .label("Audit mode")
+                .helpText("Where audit events go: OFF, LOG (the com.cuong.storage.audit log category) or TABLE (the user_audit table)")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("OFF", "LOG", "TABLE")
+                .defaultValue(DEFAULT_AUDIT_MODE)
+                .add()
+                .property()
+                .name(AUDIT_SAMPLING)
+                .label("Audit sampling")
+                .helpText("Per event type sampling rates as TYPE=rate, e.g. LOOKUP=0.05. Defaults: LOOKUP=0.01, SEARCH=0.1, everything else 1")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+                .property()
+                .name(AUDIT_BUFFER_SIZE)
+                .label("Audit buffer size")
+                .helpText("Audit events buffered between flushes; events beyond this are dropped and counted")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_AUDIT_BUFFER_SIZE)
+                .add()
+                .property()
+                .name(AUDIT_FLUSH_INTERVAL_MS)
+                .label("Audit flush interval (ms)")
+                .helpText("How often buffered audit events are written")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_AUDIT_FLUSH_INTERVAL_MS)
+                .add()
+                .property()
+                .name(REPLICA_URLS)
+                .label("Read replica JDBC URLs")
+                .helpText("jdbc:postgresql: URLs of streaming replicas that serve lookups, logins and searches, with the primary's credentials. Sessions that have written read from the primary. A URL replicates shard 0; prefix it with <shard>= for another shard")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+                .property()
+                .name(REPLICA_MAX_LAG_MS)
+                .label("Replica max lag (ms)")
+                .helpText("Replicas further behind the primary than this stop receiving reads until they catch up")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_REPLICA_MAX_LAG_MS)
+                .add()
+                .property()
+                .name(REPLICA_CHECK_INTERVAL_MS)
+                .label("Replica health check interval (ms)")
+                .helpText("How often replica health and lag are measured")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_REPLICA_CHECK_INTERVAL_MS)
+                .add()
+                .property()
+                .name(KEY_FILTER_ENABLED)
+                .label("Negative lookup filter")
+                .helpText("Keep a Bloom filter of usernames and emails so lookups of unknown users skip the database. Needs the change feed, which adds users created by other nodes; without it every lookup queries the database.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(DEFAULT_KEY_FILTER_ENABLED)
+                .add()
+                .property()
+                .name(KEY_FILTER_FALSE_POSITIVE_RATE)
+                .label("Negative lookup filter false-positive rate")
+                .helpText("Share of unknown names that still query the database; lower rates use more memory")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_KEY_FILTER_FALSE_POSITIVE_RATE)
+                .add()
+                .property()
+                .name(KEY_FILTER_REFRESH_MS)
+                .label("Negative lookup filter refresh (ms)")
+                .helpText("How often the filter re-reads recently changed users, for those the change feed missed; it is only trusted after a refresh since the feed began listening")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_KEY_FILTER_REFRESH_MS)
+                .add()
+                .property()
+                .name(KEY_FILTER_REBUILD_MINUTES)
+                .label("Negative lookup filter rebuild (minutes)")
+                .helpText("How often the filter is rebuilt from scratch, dropping removed users and resizing")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_KEY_FILTER_REBUILD_MINUTES)
+                .add()
+                .property()
+                .name(LOOKUP_COALESCING)
+                .label("Coalesce lookups")
+                .helpText("Share one query between concurrent lookups of the same user and batch concurrent id lookups into one query")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(DEFAULT_LOOKUP_COALESCING)
+                .add()
+                .property()
+                .name(LOOKUP_BATCH_SIZE)
+                .label("Lookup batch size")
+                .helpText("Most ids loaded by one batched query")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_LOOKUP_BATCH_SIZE)
+                .add()
+                .property()
+                .name(LOOKUP_BATCH_WAIT_MICROS)
+                .label("Lookup batch wait (microseconds)")
+                .helpText("How long an id lookup waits for others to batch with while another lookup query is running")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_LOOKUP_BATCH_WAIT_MICROS)
+                .add()
+                .property()
+                .name(CHANGE_FEED_ENABLED)
+                .label("Change feed")
+                .helpText("Listen for changes to the users table and evict changed users from Keycloak's user cache on every node. Creating the trigger needs Manage schema.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(DEFAULT_CHANGE_FEED_ENABLED)
+                .add()
+                .property()
+                .name(COUNT_REFRESH_SECONDS)
+                .label("User count refresh (s)")
+                .helpText("How often the estimated total number of users is re-read from PostgreSQL's statistics")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_COUNT_REFRESH_SECONDS)
+                .add()
+                .property()
+                .name(COUNT_EXACT_LIMIT)
+                .label("Exact count limit")
+                .helpText("Filtered user counts are exact up to this many users and estimated above it; 0 always estimates")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_COUNT_EXACT_LIMIT)
+                .add()
+                .property()
+                .name(SHARD_URLS)
+                .label("Shard JDBC URLs")
+                .helpText("jdbc:postgresql: URLs of further databases to spread users over, with the same credentials; the JDBC URL above is shard 0. Users are placed by a hash of their username, so the list may only be appended to, never reordered")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+                .property()
+                .name(DIRECTORY_REFRESH_SECONDS)
+                .label("Shard directory refresh (s)")
+                .helpText("How often the shard directory picks up emails of users created or changed directly in a shard's database; unused with a single shard")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(DEFAULT_DIRECTORY_REFRESH_SECONDS)
+                .add()
+                .build();
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public String getDbUsername() {
+        return dbUsername;
+    }
+
+    public String getDbPassword() {
+        return dbPassword;
+    }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    public long getPoolAcquireTimeoutMs() {
+        return poolAcquireTimeoutMs;
+    }
+
+    public int getPoolValidationTimeoutSeconds() {
+        return poolValidationTimeoutSeconds;
+    }
+
+    public long getPoolLeakDetectionMs() {
+        return poolLeakDetectionMs;
+    }
+
+    public long getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public long getCacheTtlSeconds() {
+        return cacheTtlSeconds;
+    }
+
+    public int getHasherThreads() {
+        return hasherThreads;
+    }
+
+    public int getHasherQueueDepth() {
+        return hasherQueueDepth;
+    }
+
+    public long getHasherTimeoutMs() {
+        return hasherTimeoutMs;
+    }
+
+    public long getHashTargetMs() {
+        return hashTargetMs;
+    }
+
+    public int getHashCost() {
+        return hashCost;
+    }
+
+    public boolean isRehashOnLogin() {
+        return rehashOnLogin;
+    }
+
+    public int getSearchFetchSize() {
+        return searchFetchSize;
+    }
+
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    public boolean isManageSchema() {
+        return manageSchema;
+    }
+
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    public AuditMode getAuditMode() {
+        return auditMode;
+    }
+
+    public Map<AuditEventType, Double> getAuditSampleRates() {
+        return auditSampleRates;
+    }
+
+    public int getAuditBufferSize() {
+        return auditBufferSize;
+    }
+
+    public long getAuditFlushIntervalMs() {
+        return auditFlushIntervalMs;
+    }
+
+    public List<String> getReplicaUrls(int shard) {
+        return replicaUrls.getOrDefault(shard, List.of());
+    }
+
+    public long getReplicaMaxLagMs() {
+        return replicaMaxLagMs;
+    }
+
+    public long getReplicaCheckIntervalMs() {
+        return replicaCheckIntervalMs;
+    }
+
+    public boolean isKeyFilterEnabled() {
+        return keyFilterEnabled;
+    }
+
+    public double getKeyFilterFalsePositiveRate() {
+        return keyFilterFalsePositiveRate;
+    }
+
+    public long getKeyFilterRefreshMs() {
+        return keyFilterRefreshMs;
+    }
+
+    public long getKeyFilterRebuildMinutes() {
+        return keyFilterRebuildMinutes;
+    }
+
+    public boolean isLookupCoalescing() {
+        return lookupCoalescing;
+    }
+
+    public int getLookupBatchSize() {
+        return lookupBatchSize;
+    }
+
+    public long getLookupBatchWaitMicros() {
+        return lookupBatchWaitMicros;
+    }
+
+    public boolean isChangeFeedEnabled() {
+        return changeFeedEnabled;
+    }
+
+    public long getCountRefreshSeconds() {
+        return countRefreshSeconds;
+    }
+
+    public int getCountExactLimit() {
+        return countExactLimit;
+    }
+
+    public List<String> getShardUrls() {
+        return shardUrls;
+    }
+
+    public long getDirectoryRefreshSeconds() {
+        return directoryRefreshSeconds;
+    }
+}
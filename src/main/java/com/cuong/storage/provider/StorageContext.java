@@ -0,0 +1,286 @@
+package com.cuong.storage.provider;
+
+import com.cuong.storage.audit.AuditPipeline;
+import com.cuong.storage.cache.UserChangeFeed;
+import com.cuong.storage.cache.UserKeyFilter;
+import com.cuong.storage.cache.UserLookupCache;
+import com.cuong.storage.credential.BcryptCalibrator;
+import com.cuong.storage.credential.PasswordHasher;
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.jdbc.ReplicaRouter;
+import com.cuong.storage.metrics.ProviderMetrics;
+import com.cuong.storage.schema.SchemaManager;
+import com.cuong.storage.search.PageAnchors;
+import com.cuong.storage.search.UserCounts;
+import com.cuong.storage.shard.Shard;
+import com.cuong.storage.shard.ShardDirectory;
+import com.cuong.storage.shard.SortKey;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-component state shared by every {@link CustomUserStorageProvider} created for the same
+ * {@link org.keycloak.component.ComponentModel}. Owned by the factory and closed when the
+ * component is updated, removed or the server shuts down. Creating one migrates the schema of
+ * every shard.
+ * <p>
+ * The JDBC URL and its replicas are shard 0; every further shard URL is a database of its own
+ * with a pool, a {@link UserLoader} and a change feed. Each shard has the replicas configured for it.
+ */
+public class StorageContext implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageContext.class);
+
+    private static final long STATS_LOG_PERIOD_MINUTES = 5;
+    /** How long a coalesced lookup waits for the query another thread runs, on top of the pool acquire timeout. */
+    private static final long LOOKUP_QUERY_TIMEOUT_MS = 30_000;
+
+    private final String componentId;
+    private final StorageConfig config;
+    private final ConnectionPool pool;
+    private final List<Shard> shards = new ArrayList<>();
+    private final ShardDirectory directory;
+    private final UserLookupCache cache;
+    private final UserKeyFilter userKeys;
+    private final List<UserLoader> loaders = new ArrayList<>();
+    private final PasswordHasher passwordHasher;
+    private final PageAnchors<Long> pageAnchors = new PageAnchors<>();
+    private final PageAnchors<SortKey> shardedPageAnchors = new PageAnchors<>();
+    /** Runs the per-shard queries of a search side by side. */
+    private final ExecutorService scatter = Executors.newVirtualThreadPerTaskExecutor();
+    private final UserCounts counts;
+    private final ProviderMetrics metrics;
+    private final AuditPipeline audit;
+    private final ScheduledExecutorService scheduler;
+    private final List<UserChangeFeed> changeFeeds = new ArrayList<>();
+
+    public StorageContext(String componentId, StorageConfig config) {
+        this.componentId = componentId;
+        this.config = config;
+        try {
+            this.metrics = new ProviderMetrics(componentId);
+            this.pool = new ConnectionPool(componentId, config.getJdbcUrl(), config.getDbUsername(), config.getDbPassword(),
+                    config.getPoolMinSize(), config.getPoolMaxSize(), config.getPoolAcquireTimeoutMs(),
+                    config.getPoolValidationTimeoutSeconds(), config.getPoolLeakDetectionMs());
+            shards.add(new Shard(0, pool, replicaRouter(0, componentId + "-replica-")));
+            for (int i = 1; i <= config.getShardUrls().size(); i++) {
+                ReplicaRouter shardReplicas = replicaRouter(i, componentId + "-shard-" + i + "-replica-");
+                shards.add(new Shard(i, new ConnectionPool(componentId + "-shard-" + i, config.getShardUrls().get(i - 1),
+                        config.getDbUsername(), config.getDbPassword(), config.getPoolMinSize(), config.getPoolMaxSize(),
+                        config.getPoolAcquireTimeoutMs(), config.getPoolValidationTimeoutSeconds(), config.getPoolLeakDetectionMs()),
+                        shardReplicas));
+            }
+            // Before anything reads the users table, and before the hash cost is read from shard 0
+            for (Shard shard : shards) {
+                new SchemaManager(shard.getPool()).migrate(config.isManageSchema());
+            }
+            List<ConnectionPool> shardPools = shards.stream().map(Shard::getPool).toList();
+            this.directory = new ShardDirectory(shards);
+            this.cache = new UserLookupCache(config.getCacheMaxEntries(), Duration.ofSeconds(config.getCacheTtlSeconds()));
+            for (Shard shard : shards) {
+                loaders.add(new UserLoader(shard.getIndex(), shard.getPool(), shard.getReplicas(), config.getLookupBatchSize(),
+                        config.getLookupBatchWaitMicros(), config.getPoolAcquireTimeoutMs() + LOOKUP_QUERY_TIMEOUT_MS));
+            }
+            this.counts = new UserCounts(shardPools, config.getCountExactLimit());
+            this.userKeys = new UserKeyFilter(shardPools, config.getKeyFilterFalsePositiveRate(), config.getKeyFilterRefreshMs());
+            int hashCost = config.getHashCost() > 0 ? config.getHashCost() : BcryptCalibrator.sharedCost(pool, config.getHashTargetMs());
+            this.passwordHasher = new PasswordHasher(componentId, hashCost, config.getHasherThreads(), config.getHasherQueueDepth(),
+                    config.getHasherTimeoutMs());
+            this.audit = new AuditPipeline(componentId, config.getAuditMode(), config.getAuditSampleRates(),
+                    config.getAuditBufferSize(), pool);
+            // Two threads, so that building the key filter of a large table does not hold up the other tasks
+            this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+                Thread thread = new Thread(r, "user-storage-" + componentId);
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::logStats, STATS_LOG_PERIOD_MINUTES, STATS_LOG_PERIOD_MINUTES, TimeUnit.MINUTES);
+            scheduler.scheduleWithFixedDelay(counts::refresh, 0, config.getCountRefreshSeconds(), TimeUnit.SECONDS);
+            if (config.isKeyFilterEnabled()) {
+                if (!config.isChangeFeedEnabled()) {
+                    logger.warn("User storage {} has the key filter enabled without the change feed, so every lookup will still query "
+                            + "the database", componentId);
+                }
+                metrics.registerKeyFilter(userKeys::getMemoryBytes, userKeys::getEstimatedFalsePositiveRate, userKeys::getDefiniteMissCount);
+                scheduler.scheduleWithFixedDelay(userKeys::catchUp, 0, config.getKeyFilterRefreshMs(), TimeUnit.MILLISECONDS);
+                scheduler.scheduleWithFixedDelay(userKeys::rebuild, config.getKeyFilterRebuildMinutes(), config.getKeyFilterRebuildMinutes(),
+                        TimeUnit.MINUTES);
+            }
+            if (directory.isEnabled()) {
+                scheduler.scheduleWithFixedDelay(directory::catchUp, 0, config.getDirectoryRefreshSeconds(), TimeUnit.SECONDS);
+            }
+            for (Shard shard : shards) {
+                if (shard.getReplicas().hasReplicas()) {
+                    scheduler.scheduleWithFixedDelay(shard.getReplicas()::checkHealth, 0, config.getReplicaCheckIntervalMs(), TimeUnit.MILLISECONDS);
+                }
+            }
+            if (audit.isEnabled()) {
+                scheduler.scheduleWithFixedDelay(audit::drain, config.getAuditFlushIntervalMs(), config.getAuditFlushIntervalMs(),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (RuntimeException | Error e) {
+            // Whatever was already started would otherwise outlive the failed context
+            release();
+            throw e;
+        }
+    }
+
+    private ReplicaRouter replicaRouter(int shard, String namePrefix) {
+        List<String> urls = config.getReplicaUrls(shard);
+        List<ConnectionPool> replicaPools = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            replicaPools.add(new ConnectionPool(namePrefix + i, urls.get(i), config.getDbUsername(), config.getDbPassword(),
+                    config.getPoolMinSize(), config.getPoolMaxSize(), config.getPoolAcquireTimeoutMs(),
+                    config.getPoolValidationTimeoutSeconds(), config.getPoolLeakDetectionMs()));
+        }
+        ReplicaRouter router = new ReplicaRouter(replicaPools, config.getReplicaMaxLagMs());
+        try {
+            for (ConnectionPool replica : replicaPools) {
+                metrics.registerReplica(replica.getName(), () -> router.getLagMs(replica), () -> router.isHealthy(replica));
+            }
+        } catch (RuntimeException e) {
+            router.close();
+            throw e;
+        }
+        return router;
+    }
+
+    /**
+     * Starts evicting users changed in the database from Keycloak's user cache, if enabled. Needs a
+     * running server, so it is started by the factory rather than the constructor.
+     */
+    public synchronized void startChangeFeed(KeycloakSessionFactory sessionFactory, String realmId) {
+        if (!config.isChangeFeedEnabled() || !changeFeeds.isEmpty()) {
+            return;
+        }
+        for (Shard shard : shards) {
+            String url = shard.getIndex() == 0 ? config.getJdbcUrl() : config.getShardUrls().get(shard.getIndex() - 1);
+            UserChangeFeed feed = new UserChangeFeed(componentId, shard.getIndex(), realmId, url, config.getDbUsername(),
+                    config.getDbPassword(), cache, userKeys, sessionFactory);
+            changeFeeds.add(feed);
+            feed.start();
+        }
+    }
+
+    private void logStats() {
+        logger.info("User storage {}: pool active={} idle={}, replicas {}, shards {}, hashing queue={}, lookup cache {}, key filter {}, "
+                        + "loaders {}, users {}, change feeds {}, audit {}",
+                componentId, pool.getActiveCount(), pool.getIdleCount(), shards.stream().map(Shard::getReplicas).toList(), shards.size(), passwordHasher.getQueueDepth(), cache,
+                userKeys, loaders, counts, changeFeeds.isEmpty() ? "off" : changeFeeds, audit);
+    }
+
+    public StorageConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The pool of shard 0, which also holds the shard directory and the audit table.
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public Shard getShard(int index) {
+        return shards.get(index);
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    public ShardDirectory getDirectory() {
+        return directory;
+    }
+
+    public ExecutorService getScatterExecutor() {
+        return scatter;
+    }
+
+    public UserLookupCache getCache() {
+        return cache;
+    }
+
+    public UserLoader getLoader(int shard) {
+        return loaders.get(shard);
+    }
+
+    /**
+     * Never built, and so always answering "maybe", when the filter is disabled.
+     */
+    public UserKeyFilter getUserKeys() {
+        return userKeys;
+    }
+
+    public UserCounts getCounts() {
+        return counts;
+    }
+
+    public PasswordHasher getPasswordHasher() {
+        return passwordHasher;
+    }
+
+    public PageAnchors<Long> getPageAnchors() {
+        return pageAnchors;
+    }
+
+    public PageAnchors<SortKey> getShardedPageAnchors() {
+        return shardedPageAnchors;
+    }
+
+    public ProviderMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AuditPipeline getAudit() {
+        return audit;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public synchronized void close() {
+        release();
+    }
+
+    /**
+     * Also closes what a constructor that failed part way through had started.
+     */
+    private void release() {
+        changeFeeds.forEach(UserChangeFeed::close);
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        scatter.shutdownNow();
+        if (audit != null) {
+            audit.close();
+        }
+        if (passwordHasher != null) {
+            passwordHasher.close();
+        }
+        shards.forEach(Shard::close);
+        if (pool != null && shards.isEmpty()) {
+            pool.close();
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.cuong.storage.provider;
+
+import com.cuong.storage.model.User;
+import com.cuong.storage.model.UserColumns;
+import com.cuong.storage.shard.Shard;
+import com.cuong.storage.shard.Sharding;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Imports rows of the {@code users} table into Keycloak's local user storage.
+ * <p>
+ * Rows are read through a server-side cursor and imported in fixed-size batches, each batch in
+ * its own Keycloak transaction, so neither side holds the whole table in memory. A failing batch
+ * is rolled back and all of its users are reported as failed; the sync then continues with the
+ * next batch. Shards are imported one after another.
+ */
+class UserImporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserImporter.class);
+
+    /**
+     * Changes are selected slightly before the last sync start to absorb clock skew between
+     * Keycloak nodes and the database; re-reading an unchanged row is not counted as an update.
+     */
+    private static final long SYNC_OVERLAP_MS = 60_000;
+
+    private final StorageContext context;
+    private final UserStorageProviderModel model;
+
+    UserImporter(StorageContext context, UserStorageProviderModel model) {
+        this.context = context;
+        this.model = model;
+    }
+
+    SynchronizationResult importAll(KeycloakSessionFactory sessionFactory, String realmId) {
+        logger.info("Starting full sync of users for component {}", model.getName());
+        return run(sessionFactory, realmId, null);
+    }
+
+    SynchronizationResult importChangedSince(KeycloakSessionFactory sessionFactory, String realmId, Date lastSync) {
+        if (lastSync == null) {
+            return importAll(sessionFactory, realmId);
+        }
+        logger.info("Starting sync of users changed since {} for component {}", lastSync, model.getName());
+        return run(sessionFactory, realmId, new Timestamp(lastSync.getTime() - SYNC_OVERLAP_MS));
+    }
+
+    private SynchronizationResult run(KeycloakSessionFactory sessionFactory, String realmId, Timestamp since) {
+        SynchronizationResult result = new SynchronizationResult();
+        String query = since == null
+                ? "SELECT " + UserColumns.FULL + " FROM users ORDER BY id"
+                : "SELECT " + UserColumns.FULL + " FROM users WHERE last_modified > ? ORDER BY last_modified, id";
+
+        for (Shard shard : context.getShards()) {
+            importShard(sessionFactory, realmId, shard, query, since, result);
+        }
+        logger.info("Sync of component {} finished: {}", model.getName(), result.getStatus());
+        return result;
+    }
+
+    private void importShard(KeycloakSessionFactory sessionFactory, String realmId, Shard shard, String query, Timestamp since,
+                             SynchronizationResult result) {
+        int batchSize = context.getConfig().getSyncBatchSize();
+        Connection connection = null;
+        try {
+            connection = shard.getPool().acquire();
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setFetchSize(batchSize);
+                if (since != null) {
+                    stmt.setTimestamp(1, since);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    List<User> batch = new ArrayList<>(batchSize);
+                    while (rs.next()) {
+                        batch.add(UserColumns.mapFull(rs, shard.getIndex()));
+                        if (batch.size() == batchSize) {
+                            result.add(importBatch(sessionFactory, realmId, batch));
+                            batch.clear();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        result.add(importBatch(sessionFactory, realmId, batch));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Error reading users of {} for sync", shard, e);
+            result.increaseFailed();
+        } finally {
+            shard.getPool().release(connection);
+        }
+    }
+
+    private SynchronizationResult importBatch(KeycloakSessionFactory sessionFactory, String realmId, List<User> batch) {
+        SynchronizationResult batchResult = new SynchronizationResult();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+                for (User user : batch) {
+                    importUser(realm, localStorage, user, batchResult);
+                }
+            });
+            return batchResult;
+        } catch (RuntimeException e) {
+            logger.error("Failed to import a batch of {} users starting at id {}", batch.size(), Sharding.externalId(batch.get(0).getId()), e);
+            SynchronizationResult failed = new SynchronizationResult();
+            failed.setFailed(batch.size());
+            return failed;
+        }
+    }
+
+    private void importUser(RealmModel realm, UserProvider localStorage, User user, SynchronizationResult result) {
+        UserModel local = localStorage.getUserByUsername(realm, user.getUsername());
+        if (local == null) {
+            local = localStorage.addUser(realm, user.getUsername());
+            local.setFederationLink(model.getId());
+            local.setEnabled(true);
+            apply(local, user);
+            result.increaseAdded();
+        } else if (!model.getId().equals(local.getFederationLink())) {
+            logger.warn("Skipping user {}: a local user with that username is not linked to this provider", user.getUsername());
+            result.increaseFailed();
+        } else if (apply(local, user)) {
+            result.increaseUpdated();
+        }
+    }
+
+    private static boolean apply(UserModel local, User user) {
+        boolean changed = false;
+        // Keycloak stores emails lowercased
+        if (user.getEmail() == null ? local.getEmail() != null : !user.getEmail().equalsIgnoreCase(local.getEmail())) {
+            local.setEmail(user.getEmail());
+            changed = true;
+        }
+        if (!Objects.equals(local.getFirstName(), user.getFirstName())) {
+            local.setFirstName(user.getFirstName());
+            changed = true;
+        }
+        if (!Objects.equals(local.getLastName(), user.getLastName())) {
+            local.setLastName(user.getLastName());
+            changed = true;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,275 @@
+package com.cuong.storage.provider;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.jdbc.ReplicaRouter;
+import com.cuong.storage.model.User;
+import com.cuong.storage.model.UserColumns;
+import com.cuong.storage.shard.Sharding;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lookup layer shared by all sessions of a component, used by sessions that have not written.
+ * <p>
+ * Concurrent lookups of the same id, username or email share one in-flight query (single-flight).
+ * Id lookups are also batched: while another lookup query is running, the first id to arrive
+ * waits up to {@code batchWaitMicros} for others and then loads them all with one
+ * {@code id = ANY(?)} query, at most {@code batchSize} at a time. With nothing else in flight
+ * an id is queried straight away, so batching only adds latency when it saves queries.
+ * Queries run on a replica when one is healthy, else on the primary, and users read from a
+ * replica are marked {@link User#isFromReplica() as such}. There is one loader per
+ * shard; ids it takes and returns are global, and it queries its shard with their local part.
+ */
+public class UserLoader {
+
+    enum Kind {
+        ID("SELECT " + UserColumns.FULL + " FROM users WHERE id = ?"),
+        // Served by the unique lower() indexes; Keycloak lowercases usernames, not legacy rows
+        USERNAME("SELECT " + UserColumns.FULL + " FROM users WHERE lower(username) = lower(?)"),
+        EMAIL("SELECT " + UserColumns.FULL + " FROM users WHERE lower(email) = lower(?)");
+
+        final String query;
+
+        Kind(String query) {
+            this.query = query;
+        }
+    }
+
+    private static final String BY_IDS = "SELECT " + UserColumns.FULL + " FROM users WHERE id = ANY(?)";
+
+    private final int shard;
+    private final ConnectionPool pool;
+    private final ReplicaRouter replicas;
+    private final int batchSize;
+    private final long batchWaitNanos;
+    private final long timeoutMs;
+
+    private final Map<LookupKey, CompletableFuture<User>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger runningQueries = new AtomicInteger();
+    private final Object batchLock = new Object();
+    private IdBatch openBatch;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedIds = new LongAdder();
+
+    /**
+     * @param timeoutMs how long a lookup waits for a query run by another thread
+     */
+    public UserLoader(int shard, ConnectionPool pool, ReplicaRouter replicas, int batchSize, long batchWaitMicros, long timeoutMs) {
+        this.shard = shard;
+        this.pool = pool;
+        this.replicas = replicas;
+        this.batchSize = batchSize;
+        this.batchWaitNanos = TimeUnit.MICROSECONDS.toNanos(batchWaitMicros);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return a private copy of the user, or {@code null} if there is none
+     */
+    User load(Kind kind, Object value) throws SQLException {
+        return load(new LookupKey(kind, value));
+    }
+
+    private User load(LookupKey key) throws SQLException {
+        CompletableFuture<User> mine = new CompletableFuture<>();
+        CompletableFuture<User> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            return copy(await(existing));
+        }
+        try {
+            if (key.kind() == Kind.ID) {
+                mine.complete(await(enqueue((Long) key.value())));
+            } else {
+                mine.complete(querySingle(key));
+            }
+        } catch (SQLException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+        return copy(mine.join());
+    }
+
+    private User querySingle(LookupKey key) throws SQLException {
+        runningQueries.incrementAndGet();
+        Lease lease = null;
+        try {
+            lease = acquire();
+            User user = query(lease.connection(), key);
+            if (user != null) {
+                user.setFromReplica(lease.pool() != pool);
+            }
+            return user;
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+            runningQueries.decrementAndGet();
+        }
+    }
+
+    private User query(Connection connection, LookupKey key) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(key.kind().query)) {
+            stmt.setObject(1, key.value());
+            queries.increment();
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? UserColumns.mapFull(rs, shard) : null;
+            }
+        }
+    }
+
+    /**
+     * Adds an id to the open batch. The thread that opened the batch runs it, once it is full, its
+     * wait has passed, or immediately if no other query is running.
+     */
+    private CompletableFuture<User> enqueue(long id) {
+        IdBatch batch;
+        boolean leader = false;
+        CompletableFuture<User> future = new CompletableFuture<>();
+        synchronized (batchLock) {
+            if (openBatch == null) {
+                openBatch = new IdBatch();
+                leader = true;
+            }
+            batch = openBatch;
+            CompletableFuture<User> queued = batch.futures.putIfAbsent(id, future);
+            if (queued != null) {
+                return queued;
+            }
+            if (batch.futures.size() >= batchSize) {
+                openBatch = null;
+                batchLock.notifyAll();
+            }
+        }
+        if (!leader) {
+            return future;
+        }
+        if (runningQueries.get() > 0) {
+            long deadline = System.nanoTime() + batchWaitNanos;
+            synchronized (batchLock) {
+                long remaining;
+                while (openBatch == batch && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(batchLock, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        synchronized (batchLock) {
+            if (openBatch == batch) {
+                openBatch = null;
+            }
+        }
+        runBatch(batch);
+        return future;
+    }
+
+    private void runBatch(IdBatch batch) {
+        runningQueries.incrementAndGet();
+        Lease lease = null;
+        try {
+            lease = acquire();
+            Connection connection = lease.connection();
+            Map<Long, User> found = new HashMap<>();
+            try (PreparedStatement stmt = connection.prepareStatement(BY_IDS)) {
+                stmt.setArray(1, connection.createArrayOf("bigint", batch.futures.keySet().stream().map(Sharding::localId).toArray()));
+                queries.increment();
+                batches.increment();
+                batchedIds.add(batch.futures.size());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        User user = UserColumns.mapFull(rs, shard);
+                        user.setFromReplica(lease.pool() != pool);
+                        found.put(user.getId(), user);
+                    }
+                }
+            }
+            batch.futures.forEach((id, future) -> future.complete(found.get(id)));
+        } catch (SQLException | RuntimeException e) {
+            batch.futures.values().forEach(future -> future.completeExceptionally(e));
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+            runningQueries.decrementAndGet();
+        }
+    }
+
+    /**
+     * Borrows a connection from a healthy replica, or from the primary if there is none or it fails.
+     */
+    private Lease acquire() throws SQLException {
+        ConnectionPool replica = replicas.pickReplica();
+        if (replica != null) {
+            try {
+                return new Lease(replica, replica.acquire());
+            } catch (SQLException e) {
+                replicas.markFailed(replica);
+            }
+        }
+        return new Lease(pool, pool.acquire());
+    }
+
+    private User await(CompletableFuture<User> future) throws SQLException {
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a user lookup", e);
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("User lookup did not complete within " + timeoutMs + " ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw new SQLException("User lookup failed", e.getCause());
+        }
+    }
+
+    private static User copy(User user) {
+        return user == null ? null : user.copy();
+    }
+
+    @Override
+    public String toString() {
+        long batchCount = batches.sum();
+        return String.format("queries=%d coalesced=%d idBatches=%d idsPerBatch=%.1f", queries.sum(), coalesced.sum(), batchCount,
+                batchCount == 0 ? 0.0 : (double) batchedIds.sum() / batchCount);
+    }
+
+    private record LookupKey(Kind kind, Object value) {
+    }
+
+    private record Lease(ConnectionPool pool, Connection connection) {
+
+        void release() {
+            pool.release(connection);
+        }
+    }
+
+    private static final class IdBatch {
+
+        final Map<Long, CompletableFuture<User>> futures = new HashMap<>();
+    }
+}
@@ -0,0 +1,336 @@
+package com.cuong.storage.schema;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import org.keycloak.models.ModelException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings the schema the provider's queries rely on up to date, through a fixed sequence of
+ * versioned migrations recorded in {@code user_schema_version}.
+ * <p>
+ * Lookups match on {@code lower(username)} and {@code lower(email)}, which unique expression
+ * indexes serve and keep case-insensitively unique. Search matches on {@code lower(column)}:
+ * prefix and exact terms need a {@code text_pattern_ops} btree, substring terms a {@code pg_trgm}
+ * GIN index. Incremental sync reads the {@code last_modified} column, which a trigger bumps on
+ * every update. Custom attributes live in the {@code attributes} jsonb column, whose
+ * {@code jsonb_path_ops} GIN index serves containment lookups. Group memberships are kept in
+ * {@code user_groups}, keyed for both directions, and audit events written in TABLE mode in
+ * {@code user_audit}. Inserts, updates and deletes of users are announced on the
+ * {@code users_changed} channel, flagged when made through the provider's own connections, and
+ * deletions also kept in {@code user_deletions} for listeners that were disconnected.
+ * When users are sharded, {@code user_directory} on shard 0 says which shard holds an email.
+ * {@code user_hash_cost} on shard 0 keeps the calibrated bcrypt cost that every node uses.
+ * <p>
+ * Migrations run under a PostgreSQL advisory lock, so when several nodes start together one
+ * migrates and the others wait and then find nothing left to do. Indexes on {@code users} are
+ * built {@code CONCURRENTLY} so a large table stays writable; such migrations run outside a
+ * transaction, and every statement is written to be re-run after a failure part way through.
+ * A migration that fails stops the provider from starting, rather than leaving it to query
+ * without the indexes it relies on.
+ */
+public class SchemaManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaManager.class);
+
+    private static final String[] SEARCH_COLUMNS = {"username", "email", "firstname", "lastname"};
+    private static final String TRY_LOCK = "SELECT pg_try_advisory_lock(hashtext('user_schema_version'))";
+    private static final String UNLOCK = "SELECT pg_advisory_unlock(hashtext('user_schema_version'))";
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final long LOCK_RETRY_MS = 1_000;
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            Migration.transactional(1, "change tracking",
+                    "ALTER TABLE users ADD COLUMN IF NOT EXISTS last_modified timestamptz NOT NULL DEFAULT now()",
+                    "CREATE OR REPLACE FUNCTION users_touch_last_modified() RETURNS trigger AS $$ "
+                            + "BEGIN NEW.last_modified := now(); RETURN NEW; END $$ LANGUAGE plpgsql",
+                    "DROP TRIGGER IF EXISTS users_touch_last_modified ON users",
+                    "CREATE TRIGGER users_touch_last_modified BEFORE UPDATE ON users "
+                            + "FOR EACH ROW EXECUTE FUNCTION users_touch_last_modified()"),
+            Migration.concurrent(2, "last_modified index",
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS users_last_modified_idx ON users (last_modified, id)"),
+            Migration.concurrent(3, "search indexes", searchIndexes()),
+            Migration.transactional(4, "attributes column",
+                    "ALTER TABLE users ADD COLUMN IF NOT EXISTS attributes jsonb NOT NULL DEFAULT '{}'::jsonb"),
+            Migration.concurrent(5, "attributes index",
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS users_attributes_idx ON users USING gin (attributes jsonb_path_ops)"),
+            Migration.transactional(6, "group memberships",
+                    "CREATE TABLE IF NOT EXISTS user_groups ("
+                            + "user_id bigint NOT NULL REFERENCES users (id) ON DELETE CASCADE, "
+                            + "group_id varchar(36) NOT NULL, "
+                            + "PRIMARY KEY (user_id, group_id))",
+                    "CREATE INDEX IF NOT EXISTS user_groups_group_idx ON user_groups (group_id, user_id)"),
+            Migration.transactional(7, "audit table",
+                    "CREATE TABLE IF NOT EXISTS user_audit ("
+                            + "id bigserial PRIMARY KEY, "
+                            + "event_time timestamptz NOT NULL, "
+                            + "component_id varchar(36) NOT NULL, "
+                            + "type varchar(32) NOT NULL, "
+                            + "outcome varchar(16) NOT NULL, "
+                            + "subject varchar(255))",
+                    "CREATE INDEX IF NOT EXISTS user_audit_time_idx ON user_audit (event_time)"),
+            Migration.transactional(8, "change feed",
+                    "CREATE TABLE IF NOT EXISTS user_deletions ("
+                            + "id bigint NOT NULL, "
+                            + "username varchar(50), "
+                            + "email varchar(100), "
+                            + "deleted_at timestamptz NOT NULL DEFAULT now())",
+                    "CREATE INDEX IF NOT EXISTS user_deletions_time_idx ON user_deletions (deleted_at)",
+                    // The payload carries the old keys, which is what caches hold the user under
+                    "CREATE OR REPLACE FUNCTION users_notify_change() RETURNS trigger AS $$ BEGIN "
+                            + "IF TG_OP = 'DELETE' THEN "
+                            + "INSERT INTO user_deletions (id, username, email) VALUES (OLD.id, OLD.username, OLD.email); "
+                            + "END IF; "
+                            + "PERFORM pg_notify('users_changed', json_build_object('id', OLD.id, 'username', OLD.username, 'email', OLD.email)::text); "
+                            + "RETURN NULL; END $$ LANGUAGE plpgsql",
+                    "DROP TRIGGER IF EXISTS users_notify_change ON users",
+                    "CREATE TRIGGER users_notify_change AFTER UPDATE OR DELETE ON users "
+                            + "FOR EACH ROW EXECUTE FUNCTION users_notify_change()"),
+            Migration.concurrent(9, "case-insensitive unique username and email",
+                    "CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS users_username_lower_key ON users (lower(username))",
+                    "CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS users_email_lower_key ON users (lower(email))"),
+            // Only used on shard 0, but part of every shard's schema so that all shards migrate alike
+            Migration.transactional(10, "shard directory",
+                    "CREATE TABLE IF NOT EXISTS user_directory ("
+                            + "kind varchar(8) NOT NULL, "
+                            + "key varchar(255) NOT NULL, "
+                            + "shard integer NOT NULL, "
+                            + "PRIMARY KEY (kind, key))",
+                    "CREATE TABLE IF NOT EXISTS user_directory_sync ("
+                            + "shard integer PRIMARY KEY, "
+                            + "shard_count integer NOT NULL, "
+                            + "synced_until timestamptz NOT NULL)"),
+            Migration.transactional(11, "change feed origin",
+                    "CREATE OR REPLACE FUNCTION users_notify_change() RETURNS trigger AS $$ BEGIN "
+                            + "IF TG_OP = 'DELETE' THEN "
+                            + "INSERT INTO user_deletions (id, username, email) VALUES (OLD.id, OLD.username, OLD.email); "
+                            + "END IF; "
+                            + "PERFORM pg_notify('users_changed', json_build_object('id', OLD.id, 'username', OLD.username, 'email', OLD.email, "
+                            + "'provider', coalesce(current_setting('user_storage.origin', true) = 'provider', false))::text); "
+                            + "RETURN NULL; END $$ LANGUAGE plpgsql"),
+            Migration.transactional(12, "shared bcrypt cost",
+                    "CREATE TABLE IF NOT EXISTS user_hash_cost ("
+                            + "target_ms bigint PRIMARY KEY, "
+                            + "cost integer NOT NULL, "
+                            + "calibrated_at timestamptz NOT NULL DEFAULT now())"),
+            // Inserts and the new keys of updates, for the key filters of the other nodes
+            Migration.transactional(13, "change feed inserts",
+                    "CREATE OR REPLACE FUNCTION users_notify_change() RETURNS trigger AS $$ "
+                            + "DECLARE provider boolean := coalesce(current_setting('user_storage.origin', true) = 'provider', false); BEGIN "
+                            + "IF TG_OP = 'INSERT' THEN "
+                            + "PERFORM pg_notify('users_changed', json_build_object('id', NEW.id, 'inserted', true, "
+                            + "'newUsername', NEW.username, 'newEmail', NEW.email, 'provider', provider)::text); "
+                            + "ELSIF TG_OP = 'UPDATE' THEN "
+                            + "PERFORM pg_notify('users_changed', json_build_object('id', OLD.id, 'username', OLD.username, 'email', OLD.email, "
+                            + "'newUsername', NEW.username, 'newEmail', NEW.email, 'provider', provider)::text); "
+                            + "ELSE "
+                            + "INSERT INTO user_deletions (id, username, email) VALUES (OLD.id, OLD.username, OLD.email); "
+                            + "PERFORM pg_notify('users_changed', json_build_object('id', OLD.id, 'username', OLD.username, 'email', OLD.email, "
+                            + "'provider', provider)::text); "
+                            + "END IF; "
+                            + "RETURN NULL; END $$ LANGUAGE plpgsql",
+                    "DROP TRIGGER IF EXISTS users_notify_change ON users",
+                    "CREATE TRIGGER users_notify_change AFTER INSERT OR UPDATE OR DELETE ON users "
+                            + "FOR EACH ROW EXECUTE FUNCTION users_notify_change()"));
+
+    private final ConnectionPool pool;
+
+    public SchemaManager(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Applies pending migrations in order, stopping at the first that fails.
+     *
+     * @param apply whether pending migrations are applied, or only reported
+     * @throws ModelException if a migration could not be applied
+     */
+    public void migrate(boolean apply) {
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            if (!apply) {
+                reportPending(connection);
+                return;
+            }
+            lock(connection);
+            try {
+                applyPending(connection);
+            } finally {
+                execute(connection, UNLOCK);
+            }
+        } catch (SQLException e) {
+            if (apply) {
+                throw new ModelException("Failed to migrate the users schema", e);
+            }
+            logger.error("Failed to verify the users schema", e);
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Polls for the lock rather than blocking in {@code pg_advisory_lock}: a statement waiting there
+     * holds a snapshot, which the other node's {@code CREATE INDEX CONCURRENTLY} would wait for in turn.
+     */
+    private static void lock(Connection connection) throws SQLException {
+        boolean waiting = false;
+        while (true) {
+            try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(TRY_LOCK)) {
+                rs.next();
+                if (rs.getBoolean(1)) {
+                    return;
+                }
+            }
+            if (!waiting) {
+                logger.info("Waiting for another node to finish migrating the users schema");
+                waiting = true;
+            }
+            try {
+                Thread.sleep(LOCK_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the schema migration lock", e);
+            }
+        }
+    }
+
+    private void applyPending(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE IF NOT EXISTS user_schema_version ("
+                + "version integer PRIMARY KEY, "
+                + "description varchar(255) NOT NULL, "
+                + "installed_at timestamptz NOT NULL DEFAULT now())");
+        Set<Integer> applied = appliedVersions(connection);
+        for (Migration migration : MIGRATIONS) {
+            if (applied.contains(migration.version())) {
+                continue;
+            }
+            logger.info("Applying schema migration {}: {}", migration.version(), migration.description());
+            try {
+                apply(connection, migration);
+            } catch (SQLException e) {
+                if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                    throw new ModelException("Schema migration " + migration.version() + " failed: some values differ only in "
+                            + "case; merge or rename those users to retry", e);
+                }
+                throw new ModelException("Schema migration " + migration.version() + " failed; later migrations were not applied", e);
+            }
+        }
+    }
+
+    private void apply(Connection connection, Migration migration) throws SQLException {
+        if (migration.concurrent()) {
+            // A CONCURRENTLY build that failed leaves an invalid index, which IF NOT EXISTS would keep
+            dropInvalidIndexes(connection);
+            for (String statement : migration.statements()) {
+                execute(connection, statement);
+            }
+            recordVersion(connection, migration);
+            return;
+        }
+        connection.setAutoCommit(false);
+        try {
+            for (String statement : migration.statements()) {
+                execute(connection, statement);
+            }
+            recordVersion(connection, migration);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private void reportPending(Connection connection) throws SQLException {
+        boolean hasTable = exists(connection, "SELECT 1 FROM information_schema.tables WHERE table_name = 'user_schema_version'");
+        Set<Integer> applied = hasTable ? appliedVersions(connection) : Set.of();
+        MIGRATIONS.stream()
+                .filter(migration -> !applied.contains(migration.version()))
+                .forEach(migration -> logger.warn("Schema migration {} ({}) has not been applied; enable schema management "
+                        + "or apply it by hand", migration.version(), migration.description()));
+    }
+
+    private static Set<Integer> appliedVersions(Connection connection) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version FROM user_schema_version")) {
+            while (rs.next()) {
+                versions.add(rs.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    private static void recordVersion(Connection connection, Migration migration) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO user_schema_version (version, description) VALUES (?, ?)")) {
+            stmt.setInt(1, migration.version());
+            stmt.setString(2, migration.description());
+            stmt.executeUpdate();
+        }
+    }
+
+    private static void dropInvalidIndexes(Connection connection) throws SQLException {
+        List<String> invalid = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT c.relname FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid "
+                     + "WHERE i.indrelid = 'users'::regclass AND NOT i.indisvalid")) {
+            while (rs.next()) {
+                invalid.add(rs.getString(1));
+            }
+        }
+        for (String index : invalid) {
+            logger.info("Dropping index {} left invalid by an interrupted build", index);
+            execute(connection, "DROP INDEX CONCURRENTLY IF EXISTS " + index);
+        }
+    }
+
+    private static String[] searchIndexes() {
+        List<String> indexes = new ArrayList<>();
+        indexes.add("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+        for (String column : SEARCH_COLUMNS) {
+            indexes.add("CREATE INDEX CONCURRENTLY IF NOT EXISTS users_" + column
+                    + "_prefix_idx ON users (lower(" + column + ") text_pattern_ops)");
+            indexes.add("CREATE INDEX CONCURRENTLY IF NOT EXISTS users_" + column
+                    + "_trgm_idx ON users USING gin (lower(" + column + ") gin_trgm_ops)");
+        }
+        return indexes.toArray(String[]::new);
+    }
+
+    private static boolean exists(Connection connection, String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            return rs.next();
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * @param concurrent whether the statements build indexes {@code CONCURRENTLY}, which cannot run in a transaction
+     */
+    private record Migration(int version, String description, boolean concurrent, List<String> statements) {
+
+        static Migration transactional(int version, String description, String... statements) {
+            return new Migration(version, description, false, List.of(statements));
+        }
+
+        static Migration concurrent(int version, String description, String... statements) {
+            return new Migration(version, description, true, List.of(statements));
+        }
+    }
+}
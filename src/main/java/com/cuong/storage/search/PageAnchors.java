@@ -0,0 +1,39 @@
+package com.cuong.storage.search;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+
+/**
+ * Remembers where earlier result pages ended so the next page can be read with keyset
+ * pagination ({@code id > lastId}) instead of an {@code OFFSET} that rescans every skipped row.
+ * <p>
+ * Keycloak only passes numeric offsets, so an anchor is recorded whenever a page is fully
+ * consumed: the id of its last row becomes the anchor of the offset that follows it. Results
+ * merged across shards are ordered by another key, whose last value serves the same way.
+ *
+ * @param <T> the type of the sort key anchors are taken from
+ */
+public class PageAnchors<T> {
+
+    private static final long MAX_ANCHORS = 10000;
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final Cache<String, T> anchors = Caffeine.newBuilder()
+            .maximumSize(MAX_ANCHORS)
+            .expireAfterWrite(TTL)
+            .build();
+
+    public T find(String queryKey, int offset) {
+        return offset <= 0 ? null : anchors.getIfPresent(key(queryKey, offset));
+    }
+
+    public void record(String queryKey, int offset, T last) {
+        anchors.put(key(queryKey, offset), last);
+    }
+
+    private static String key(String queryKey, int offset) {
+        return offset + "|" + queryKey;
+    }
+}
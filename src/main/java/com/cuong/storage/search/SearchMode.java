@@ -0,0 +1,23 @@
+package com.cuong.storage.search;
+
+import java.util.Locale;
+
+/**
+ * How a search term is matched against a column. Each mode maps onto an index created by
+ * {@link com.cuong.storage.schema.SchemaManager}: exact and prefix matches use the
+ * {@code text_pattern_ops} btree indexes, substring matches the {@code pg_trgm} GIN indexes.
+ */
+public enum SearchMode {
+
+    EXACT,
+    PREFIX,
+    SUBSTRING;
+
+    public static SearchMode parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown search mode: " + value);
+        }
+    }
+}
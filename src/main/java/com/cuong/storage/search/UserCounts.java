@@ -0,0 +1,147 @@
+package com.cuong.storage.search;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * User counts for the admin console, which asks for one on every user list.
+ * <p>
+ * The unfiltered total is PostgreSQL's own row estimate, {@code pg_class.reltuples} scaled to the
+ * table's current size the way the planner does it, refreshed in the background by
+ * {@link #refresh()} and summed over the shards. Filtered counts are exact up to {@code exactLimit} rows, read through the
+ * search indexes with a {@code LIMIT} so that a broad filter never counts the whole table;
+ * beyond that the planner's estimate for the filter is returned instead. With several shards
+ * each one's count is taken this way and the caller adds them up.
+ */
+public class UserCounts {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserCounts.class);
+
+    private static final String ESTIMATE = "SELECT CASE WHEN c.reltuples < 0 OR c.relpages = 0 THEN -1 "
+            + "ELSE (c.reltuples / c.relpages * (pg_relation_size(c.oid) / current_setting('block_size')::integer))::bigint END "
+            + "FROM pg_class c WHERE c.oid = 'users'::regclass";
+
+    private final List<ConnectionPool> pools;
+    private final int exactLimit;
+    private volatile long total = -1;
+
+    public UserCounts(List<ConnectionPool> pools, int exactLimit) {
+        this.pools = pools;
+        this.exactLimit = exactLimit;
+    }
+
+    public void refresh() {
+        long sum = 0;
+        for (ConnectionPool pool : pools) {
+            Connection connection = null;
+            try {
+                connection = pool.acquire();
+                sum += estimateRows(connection);
+            } catch (SQLException e) {
+                logger.warn("Failed to refresh the user count of {}", pool.getName(), e);
+                return;
+            } finally {
+                if (connection != null) {
+                    pool.release(connection);
+                }
+            }
+        }
+        total = sum;
+    }
+
+    /**
+     * @return the estimated number of users, read now if no refresh has succeeded yet
+     */
+    public int getTotal() {
+        if (total < 0) {
+            refresh();
+        }
+        return clamp(total);
+    }
+
+    /**
+     * Counts the users matching {@code where}: exactly up to the limit, estimated above it.
+     */
+    public int count(Connection connection, String where, Object[] params) throws SQLException {
+        if (exactLimit > 0) {
+            String query = "SELECT count(*) FROM (SELECT 1 FROM users WHERE (" + where + ") LIMIT ?) matching";
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                int index = bind(connection, stmt, params);
+                stmt.setInt(index, exactLimit + 1);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    long matching = rs.getLong(1);
+                    if (matching <= exactLimit) {
+                        return (int) matching;
+                    }
+                }
+            }
+        }
+        // Never below what has already been seen to match
+        return clamp(Math.max(exactLimit + 1L, plannedRows(connection, where, params)));
+    }
+
+    private static long plannedRows(Connection connection, String where, Object[] params) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("EXPLAIN (FORMAT JSON) SELECT 1 FROM users WHERE (" + where + ")")) {
+            bind(connection, stmt, params);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                JsonNode plan = JsonSerialization.mapper.readTree(rs.getString(1));
+                return plan.path(0).path("Plan").path("Plan Rows").asLong();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unreadable query plan", e);
+        }
+    }
+
+    /**
+     * @return the next parameter index
+     */
+    private static int bind(Connection connection, PreparedStatement stmt, Object[] params) throws SQLException {
+        int index = 1;
+        for (Object param : params) {
+            if (param instanceof String[] values) {
+                stmt.setArray(index++, connection.createArrayOf("varchar", values));
+            } else {
+                stmt.setObject(index++, param);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Falls back to an exact count while the table has never been analyzed or vacuumed.
+     */
+    public static long estimateRows(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(ESTIMATE)) {
+            long estimate = rs.next() ? rs.getLong(1) : -1;
+            if (estimate >= 0) {
+                return estimate;
+            }
+        }
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery("SELECT count(*) FROM users")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    public static int clamp(long count) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, count));
+    }
+
+    @Override
+    public String toString() {
+        return "total~" + total;
+    }
+}
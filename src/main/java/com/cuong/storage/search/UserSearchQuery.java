@@ -0,0 +1,146 @@
+package com.cuong.storage.search;
+
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Translates the parameter map Keycloak passes to {@code searchForUserStream} into a SQL
+ * predicate over the {@code users} table.
+ * <p>
+ * The free-text {@link UserModel#SEARCH} term is split on whitespace outside double quotes, and
+ * every word must match at least one of username, email, first and last name, as in Keycloak's
+ * own store. A quoted term, which may contain spaces, is matched exactly and
+ * {@code *} acts as a wildcard; any other term uses the configured default {@link SearchMode}.
+ * Field-specific keys are combined with AND and honour {@link UserModel#EXACT}. All matching is
+ * case-insensitive on {@code lower(column)} so it stays on the expression indexes.
+ */
+public class UserSearchQuery {
+
+    private static final Map<String, String> FIELD_COLUMNS = Map.of(
+            UserModel.USERNAME, "username",
+            UserModel.EMAIL, "email",
+            UserModel.FIRST_NAME, "firstname",
+            UserModel.LAST_NAME, "lastname");
+
+    private static final List<String> SEARCH_COLUMNS = List.of("username", "email", "firstname", "lastname");
+    /** A quoted term, kept with its quotes, or a run of non-whitespace. */
+    private static final Pattern SEARCH_WORD = Pattern.compile("\"[^\"]*\"|\\S+");
+
+    private final StringBuilder where = new StringBuilder();
+    private final List<Object> params = new ArrayList<>();
+    private final StringBuilder key = new StringBuilder();
+
+    private UserSearchQuery() {
+    }
+
+    public static UserSearchQuery from(Map<String, String> searchParams, SearchMode defaultMode) {
+        UserSearchQuery query = new UserSearchQuery();
+        boolean exact = Boolean.parseBoolean(searchParams.get(UserModel.EXACT));
+
+        String search = searchParams.get(UserModel.SEARCH);
+        if (search != null && !search.isBlank() && !"*".equals(search.trim())) {
+            query.addSearch(search.trim(), defaultMode);
+        }
+        for (Map.Entry<String, String> field : FIELD_COLUMNS.entrySet()) {
+            String value = searchParams.get(field.getKey());
+            if (value != null && !value.isBlank()) {
+                query.addField(field.getValue(), value.trim(), exact ? SearchMode.EXACT : defaultMode);
+            }
+        }
+        return query;
+    }
+
+    private void addSearch(String search, SearchMode defaultMode) {
+        Matcher words = SEARCH_WORD.matcher(search);
+        while (words.find()) {
+            List<String> alternatives = new ArrayList<>();
+            for (String column : SEARCH_COLUMNS) {
+                alternatives.add(predicate(column, words.group(), defaultMode));
+            }
+            and("(" + String.join(" OR ", alternatives) + ")");
+        }
+        key.append("search=").append(search).append(';');
+    }
+
+    private void addField(String column, String value, SearchMode mode) {
+        and(predicate(column, value, mode));
+        key.append(column).append('=').append(mode).append(':').append(value).append(';');
+    }
+
+    private String predicate(String column, String term, SearchMode mode) {
+        if (term.length() > 1 && term.startsWith("\"") && term.endsWith("\"")) {
+            params.add(term.substring(1, term.length() - 1).toLowerCase(Locale.ROOT));
+            return "lower(" + column + ") = ?";
+        }
+        if (term.contains("*")) {
+            params.add(wildcardPattern(term));
+            return "lower(" + column + ") LIKE ?";
+        }
+        switch (mode) {
+            case EXACT:
+                params.add(term.toLowerCase(Locale.ROOT));
+                return "lower(" + column + ") = ?";
+            case PREFIX:
+                params.add(escapeLike(term) + "%");
+                return "lower(" + column + ") LIKE ?";
+            default:
+                params.add("%" + escapeLike(term) + "%");
+                return "lower(" + column + ") LIKE ?";
+        }
+    }
+
+    private void and(String predicate) {
+        if (where.length() > 0) {
+            where.append(" AND ");
+        }
+        where.append(predicate);
+    }
+
+    private static String wildcardPattern(String term) {
+        StringBuilder pattern = new StringBuilder();
+        String[] parts = term.split("\\*", -1);
+        boolean wildcard = false;
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0 && !wildcard) {
+                pattern.append('%');
+                wildcard = true;
+            }
+            if (!parts[i].isEmpty()) {
+                pattern.append(escapeLike(parts[i]));
+                wildcard = false;
+            }
+        }
+        return pattern.toString();
+    }
+
+    static String escapeLike(String value) {
+        return value.toLowerCase(Locale.ROOT)
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_");
+    }
+
+    /**
+     * SQL predicate with {@code ?} placeholders; {@code TRUE} when no criteria were given.
+     */
+    public String getWhere() {
+        return where.length() == 0 ? "TRUE" : where.toString();
+    }
+
+    public Object[] getParams() {
+        return params.toArray();
+    }
+
+    /**
+     * Stable description of the criteria, used to key keyset pagination anchors.
+     */
+    public String getKey() {
+        return key.toString();
+    }
+}
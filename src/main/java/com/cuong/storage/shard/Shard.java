@@ -0,0 +1,43 @@
+package com.cuong.storage.shard;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import com.cuong.storage.jdbc.ReplicaRouter;
+
+/**
+ * One database holding a slice of the users, with the replicas that serve its reads.
+ */
+public final class Shard implements AutoCloseable {
+
+    private final int index;
+    private final ConnectionPool pool;
+    private final ReplicaRouter replicas;
+
+    public Shard(int index, ConnectionPool pool, ReplicaRouter replicas) {
+        this.index = index;
+        this.pool = pool;
+        this.replicas = replicas;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public ReplicaRouter getReplicas() {
+        return replicas;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+        replicas.close();
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + " (" + pool.getName() + ")";
+    }
+}
@@ -0,0 +1,306 @@
+package com.cuong.storage.shard;
+
+import com.cuong.storage.jdbc.ConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The {@code user_directory} table on shard 0, which says which shard holds a user when the
+ * username hash cannot: it lists every email, and the usernames of users that do not live on the
+ * shard their username hashes to (renamed users, or users placed before a shard was added).
+ * <p>
+ * The provider updates entries as it creates, renames and removes users. {@link #catchUp()} reads
+ * every shard's rows modified since its previous pass, so that rows written directly to a shard
+ * are found too; after the number of shards changes it re-reads every shard in full. Entries
+ * outlive users deleted directly in a shard's database, which only costs a lookup that finds
+ * nothing. With a single shard the directory is not used.
+ */
+public class ShardDirectory {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardDirectory.class);
+
+    static final String EMAIL = "email";
+    static final String USERNAME = "username";
+    static final int BATCH_SIZE = 1000;
+    /** Re-reads this much history on every catch-up, for transactions that committed late. */
+    static final long CATCH_UP_OVERLAP_MS = 60_000;
+
+    private static final String FIND = "SELECT shard FROM user_directory WHERE kind = ? AND key = lower(?)";
+    private static final String UPSERT = "INSERT INTO user_directory (kind, key, shard) "
+            + "SELECT DISTINCT ON (kind, lower(key)) kind, lower(key), shard FROM unnest(?::varchar[], ?::varchar[], ?::integer[]) AS e(kind, key, shard) "
+            + "ON CONFLICT (kind, key) DO UPDATE SET shard = EXCLUDED.shard";
+    private static final String LISTED = "SELECT key FROM user_directory WHERE kind = ? AND key IN (SELECT lower(k) FROM unnest(?::varchar[]) AS k)";
+    private static final String DELETE = "DELETE FROM user_directory WHERE shard = ? "
+            + "AND ((kind = 'email' AND key = lower(?)) OR (kind = 'username' AND key = lower(?)))";
+
+    private final List<Shard> shards;
+    private final ConnectionPool pool;
+
+    public ShardDirectory(List<Shard> shards) {
+        this.shards = shards;
+        this.pool = shards.get(0).getPool();
+    }
+
+    public boolean isEnabled() {
+        return shards.size() > 1;
+    }
+
+    /**
+     * @return the shard listed for the email, or {@code null} if none is
+     */
+    public Integer findEmail(String email) throws SQLException {
+        return find(EMAIL, email);
+    }
+
+    /**
+     * @return the shard listed for a user not living where its username hashes to, or {@code null}
+     */
+    public Integer findUsername(String username) throws SQLException {
+        return find(USERNAME, username);
+    }
+
+    /**
+     * @return those of the emails that are listed, lowercased
+     */
+    public Set<String> listedEmails(Collection<String> emails) throws SQLException {
+        return listed(EMAIL, emails);
+    }
+
+    /**
+     * @return those of the usernames listed as living off their hashed shard, lowercased
+     */
+    public Set<String> listedUsernames(Collection<String> usernames) throws SQLException {
+        return listed(USERNAME, usernames);
+    }
+
+    private Set<String> listed(String kind, Collection<String> keys) throws SQLException {
+        Set<String> listed = new HashSet<>();
+        if (!isEnabled() || keys.isEmpty()) {
+            return listed;
+        }
+        Connection connection = pool.acquire();
+        try (PreparedStatement stmt = connection.prepareStatement(LISTED)) {
+            stmt.setString(1, kind);
+            stmt.setArray(2, connection.createArrayOf("varchar", keys.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    listed.add(rs.getString(1));
+                }
+            }
+        } finally {
+            pool.release(connection);
+        }
+        return listed;
+    }
+
+    private Integer find(String kind, String key) throws SQLException {
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+        Connection connection = pool.acquire();
+        try (PreparedStatement stmt = connection.prepareStatement(FIND)) {
+            stmt.setString(1, kind);
+            stmt.setString(2, key);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                int shard = rs.getInt(1);
+                return shard < shards.size() ? shard : null;
+            }
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Lists a user's keys as living on {@code shard}; either key may be {@code null}. A failure is
+     * logged and left for the next {@link #catchUp()}.
+     */
+    public void register(int shard, String username, String email) {
+        register(shard, List.of(new UserKeys(username, email)));
+    }
+
+    /**
+     * Lists many users' keys as living on {@code shard}.
+     */
+    public void register(int shard, List<UserKeys> users) {
+        if (!isEnabled() || users.isEmpty()) {
+            return;
+        }
+        Entries entries = new Entries();
+        users.forEach(user -> entries.add(shard, user.username(), user.email(), shards.size()));
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            upsert(connection, entries);
+        } catch (SQLException e) {
+            logger.warn("Failed to register {} users on shard {} in the directory", users.size(), shard, e);
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of keys a user on {@code shard} no longer has; either may be {@code null}.
+     */
+    public void unregister(int shard, String username, String email) {
+        if (!isEnabled() || (username == null && email == null)) {
+            return;
+        }
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            try (PreparedStatement stmt = connection.prepareStatement(DELETE)) {
+                stmt.setInt(1, shard);
+                stmt.setString(2, email);
+                stmt.setString(3, username);
+                stmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to remove user {} on shard {} from the directory", username != null ? username : email, shard, e);
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Lists the keys of users created or changed on any shard since the previous pass.
+     */
+    public synchronized void catchUp() {
+        if (!isEnabled()) {
+            return;
+        }
+        for (Shard shard : shards) {
+            Connection directory = null;
+            Connection source = null;
+            try {
+                directory = pool.acquire();
+                source = shard.getPool().acquire();
+                catchUp(shard.getIndex(), directory, source);
+            } catch (SQLException e) {
+                logger.warn("Failed to update the directory from {}", shard, e);
+            } finally {
+                if (source != null) {
+                    shard.getPool().release(source);
+                }
+                if (directory != null) {
+                    pool.release(directory);
+                }
+            }
+        }
+    }
+
+    private void catchUp(int shard, Connection directory, Connection source) throws SQLException {
+        Timestamp from = null;
+        try (PreparedStatement stmt = directory.prepareStatement("SELECT shard_count, synced_until FROM user_directory_sync WHERE shard = ?")) {
+            stmt.setInt(1, shard);
+            try (ResultSet rs = stmt.executeQuery()) {
+                // After the shard count changed, usernames may hash elsewhere: re-read everything
+                if (rs.next() && rs.getInt(1) == shards.size()) {
+                    from = new Timestamp(rs.getTimestamp(2).getTime() - CATCH_UP_OVERLAP_MS);
+                }
+            }
+        }
+        Timestamp now;
+        try (Statement stmt = source.createStatement(); ResultSet rs = stmt.executeQuery("SELECT now()")) {
+            rs.next();
+            now = rs.getTimestamp(1);
+        }
+        long rows = 0;
+        source.setAutoCommit(false);
+        try (PreparedStatement stmt = source.prepareStatement(from == null
+                ? "SELECT username, email FROM users"
+                : "SELECT username, email FROM users WHERE last_modified > ?")) {
+            stmt.setFetchSize(BATCH_SIZE);
+            if (from != null) {
+                stmt.setTimestamp(1, from);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                Entries entries = new Entries();
+                while (rs.next()) {
+                    entries.add(shard, rs.getString(1), rs.getString(2), shards.size());
+                    rows++;
+                    if (entries.size() >= BATCH_SIZE) {
+                        upsert(directory, entries);
+                        entries = new Entries();
+                    }
+                }
+                upsert(directory, entries);
+            }
+        } finally {
+            source.commit();
+            source.setAutoCommit(true);
+        }
+        try (PreparedStatement stmt = directory.prepareStatement("INSERT INTO user_directory_sync (shard, shard_count, synced_until) "
+                + "VALUES (?, ?, ?) ON CONFLICT (shard) DO UPDATE SET shard_count = EXCLUDED.shard_count, synced_until = EXCLUDED.synced_until")) {
+            stmt.setInt(1, shard);
+            stmt.setInt(2, shards.size());
+            stmt.setTimestamp(3, now);
+            stmt.executeUpdate();
+        }
+        if (from == null) {
+            logger.info("Listed {} users of shard {} in the directory", rows, shard);
+        }
+    }
+
+    private static void upsert(Connection connection, Entries entries) throws SQLException {
+        if (entries.size() == 0) {
+            return;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(UPSERT)) {
+            stmt.setArray(1, connection.createArrayOf("varchar", entries.kinds.toArray()));
+            stmt.setArray(2, connection.createArrayOf("varchar", entries.keys.toArray()));
+            stmt.setArray(3, connection.createArrayOf("integer", entries.shards.toArray()));
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * A user's username and email, either of which may be {@code null}.
+     */
+    public record UserKeys(String username, String email) {
+    }
+
+    private static final class Entries {
+
+        final List<String> kinds = new ArrayList<>();
+        final List<String> keys = new ArrayList<>();
+        final List<Integer> shards = new ArrayList<>();
+
+        void add(int shard, String username, String email, int shardCount) {
+            if (email != null) {
+                add(EMAIL, email, shard);
+            }
+            if (username != null && Sharding.shardFor(username, shardCount) != shard) {
+                add(USERNAME, username, shard);
+            }
+        }
+
+        private void add(String kind, String key, int shard) {
+            kinds.add(kind);
+            keys.add(key);
+            shards.add(shard);
+        }
+
+        int size() {
+            return keys.size();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.cuong.storage.shard;
+
+import java.util.Locale;
+
+/**
+ * Placement of users on shards and the ids that say where they live.
+ * <p>
+ * A user lives on the shard its lowercased username hashes to when it is created. Inside the
+ * provider a user's id is global: the shard index in the top bits above the row's own
+ * {@code bigserial} id, so caches and batches keyed by id never mix up users of different shards.
+ * Keycloak sees it as {@code <shard>-<id>}, or just {@code <id>} on shard 0, so ids issued before
+ * sharding was configured stay valid and {@code getUserById} finds the shard without a lookup.
+ */
+public final class Sharding {
+
+    public static final int MAX_SHARDS = 1 << 14;
+
+    private static final int LOCAL_BITS = 48;
+    private static final long LOCAL_MASK = (1L << LOCAL_BITS) - 1;
+
+    private Sharding() {
+    }
+
+    public static long globalId(int shard, long localId) {
+        return (long) shard << LOCAL_BITS | localId;
+    }
+
+    public static int shardOf(long globalId) {
+        return (int) (globalId >>> LOCAL_BITS);
+    }
+
+    public static long localId(long globalId) {
+        return globalId & LOCAL_MASK;
+    }
+
+    public static String externalId(long globalId) {
+        int shard = shardOf(globalId);
+        return shard == 0 ? String.valueOf(globalId) : shard + "-" + localId(globalId);
+    }
+
+    /**
+     * @throws NumberFormatException if the id was not issued by {@link #externalId(long)}
+     */
+    public static long parseExternalId(String externalId) {
+        int separator = externalId.indexOf('-');
+        if (separator < 0) {
+            return globalId(0, checkedLocal(Long.parseLong(externalId)));
+        }
+        int shard = Integer.parseInt(externalId.substring(0, separator));
+        if (shard < 0 || shard >= MAX_SHARDS) {
+            throw new NumberFormatException("Shard out of range: " + externalId);
+        }
+        return globalId(shard, checkedLocal(Long.parseLong(externalId.substring(separator + 1))));
+    }
+
+    private static long checkedLocal(long localId) {
+        if (localId < 0 || localId > LOCAL_MASK) {
+            throw new NumberFormatException("Id out of range: " + localId);
+        }
+        return localId;
+    }
+
+    /**
+     * The shard a new user with this username is created on. The hash is part of the stored data:
+     * changing it would send lookups to the wrong shard.
+     */
+    public static int shardFor(String username, int shardCount) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        String key = username.toLowerCase(Locale.ROOT);
+        // FNV-1a, then MurmurHash3's finalizer to spread the low bits
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) Math.floorMod(h, (long) shardCount);
+    }
+}
@@ -0,0 +1,19 @@
+package com.cuong.storage.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Position of a user in results merged across shards: its lowercased username, then its shard.
+ * Usernames are compared byte by byte in UTF-8, as PostgreSQL's {@code ~<~} operator does, so the
+ * order matches the per-shard {@code ORDER BY lower(username) USING ~<~} being merged. Within a
+ * shard {@code lower(username)} is unique, which makes the pair a usable keyset anchor.
+ */
+public record SortKey(String key, int shard) implements Comparable<SortKey> {
+
+    @Override
+    public int compareTo(SortKey other) {
+        int order = Arrays.compareUnsigned(key.getBytes(StandardCharsets.UTF_8), other.key.getBytes(StandardCharsets.UTF_8));
+        return order != 0 ? order : Integer.compare(shard, other.shard);
+    }
+}
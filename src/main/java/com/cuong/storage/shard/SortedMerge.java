@@ -0,0 +1,70 @@
+package com.cuong.storage.shard;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Merges streams that are each sorted into one sorted stream, pulling from an input only when its
+ * current head has been passed on, so merging per-shard cursors keeps each of them streaming.
+ */
+public final class SortedMerge {
+
+    private SortedMerge() {
+    }
+
+    /**
+     * Closing the merged stream closes every input.
+     */
+    public static <T> Stream<T> of(List<Stream<T>> inputs, Comparator<? super T> order) {
+        Merger<T> merger = new Merger<>(inputs, order);
+        return StreamSupport.stream(merger, false).onClose(() -> inputs.forEach(Stream::close));
+    }
+
+    private static final class Merger<T> extends Spliterators.AbstractSpliterator<T> {
+
+        private final List<Iterator<T>> sources = new ArrayList<>();
+        private final PriorityQueue<Head<T>> heads;
+        private boolean started;
+
+        private Merger(List<Stream<T>> inputs, Comparator<? super T> order) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            inputs.forEach(input -> sources.add(input.iterator()));
+            this.heads = new PriorityQueue<>(Math.max(1, inputs.size()), (a, b) -> order.compare(a.value, b.value));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (!started) {
+                started = true;
+                for (int i = 0; i < sources.size(); i++) {
+                    pull(i);
+                }
+            }
+            Head<T> head = heads.poll();
+            if (head == null) {
+                return false;
+            }
+            pull(head.source);
+            action.accept(head.value);
+            return true;
+        }
+
+        private void pull(int source) {
+            Iterator<T> iterator = sources.get(source);
+            if (iterator.hasNext()) {
+                heads.add(new Head<>(iterator.next(), source));
+            }
+        }
+    }
+
+    private record Head<T>(T value, int source) {
+    }
+}